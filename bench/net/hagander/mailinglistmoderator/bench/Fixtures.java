@@ -0,0 +1,160 @@
+/*
+ * Fixtures.java - This class holds generated pages looking like those of the list servers.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.bench;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Generates the pages of Mailman and Majordomo2 for a queue of held
+ *         messages. They have the same structure as the real ones, with some
+ *         surrounding markup, but no more than the parsers need.
+ *
+ *         Each message is identified by a number, and its sender, subject,
+ *         contents and Majordomo2 token are all derived from that number, so
+ *         the same message looks the same on every page.
+ */
+class Fixtures {
+	public static String sender(int id) {
+		return String.format("User %d &lt;user%d@example.com&gt;", id % 97,
+				id % 97);
+	}
+
+	public static String subject(int id) {
+		return String.format(
+				"Re: &quot;Question&quot; number %d about things", id);
+	}
+
+	public static String content(int id) {
+		StringBuilder sb = new StringBuilder();
+		for (int l = 0; l < 20; l++)
+			sb.append(String.format(
+					"Line %d of message %d, with some text to make it look like a real message.\n",
+					l, id));
+		return sb.toString();
+	}
+
+	public static String token(int id) {
+		return String.format("%04X-%04X-%04X", id % 65536, id * 7 % 65536,
+				id * 13 % 65536);
+	}
+
+	/**
+	 * The admindb page with details=all, or with a single msgid.
+	 */
+	public static String mailmanDetailsPage(int[] ids) {
+		StringBuilder sb = new StringBuilder(
+				"<html><head><title>Administrative Database</title></head><body>\n<form method=\"POST\">\n");
+		for (int i = 0; i < ids.length; i++) {
+			int id = ids[i];
+			sb.append("<table CELLPADDING=\"0\" WIDTH=\"100%\" CELLSPACING=\"0\">\n");
+			sb.append("<tr><td ALIGN=\"right\"><strong>From:</strong></td>\n<td>")
+					.append(sender(id)).append("</td></tr>\n");
+			sb.append("<tr><td ALIGN=\"right\"><strong>Subject:</strong></td>\n<td>")
+					.append(subject(id)).append("</td></tr>\n");
+			sb.append("<tr><td ALIGN=\"right\"><strong>Reason:</strong></td>\n<td>Post by non-member to a members-only list</td></tr>\n");
+			sb.append("<tr><td><INPUT name=\"").append(id).append(
+					"\" type=\"RADIO\" value=\"0\" CHECKED >Defer</td></tr>\n");
+			sb.append("<tr><td><TEXTAREA NAME=fulltext-").append(id).append(
+					" ROWS=10 COLS=76 WRAP=soft READONLY>").append(content(id))
+					.append("</TEXTAREA></td></tr>\n");
+			sb.append("</table>\n<p>\n");
+		}
+		sb.append("</form></body></html>\n");
+		return sb.toString();
+	}
+
+	/**
+	 * The admindb overview page, grouping the messages by sender.
+	 */
+	public static String mailmanSummaryPage(int[] ids) {
+		StringBuilder sb = new StringBuilder(
+				"<html><head><title>Administrative Database</title></head><body>\n<form method=\"POST\">\n");
+		for (int i = 0; i < ids.length; i++) {
+			int id = ids[i];
+			/* A few messages from each sender */
+			if (i % 3 == 0)
+				sb.append("<tr><td colspan=\"2\"><center><strong>From:</strong> ")
+						.append(sender(id)).append("</center></td></tr>\n");
+			sb.append("<tr><td><a href=\"http://lists.example.com/mailman/admindb/list?msgid=")
+					.append(id).append("\">[").append(id).append("]</a></td>\n");
+			sb.append("<td><table><tr><td align=\"right\"><strong>Subject:</strong></td>\n<td bgcolor=\"#cccccc\">")
+					.append(subject(id)).append("</td></tr></table></td></tr>\n");
+		}
+		sb.append("</form></body></html>\n");
+		return sb.toString();
+	}
+
+	public static String mailmanAuthFailedPage() {
+		return "<html><head><title>Administrative Authentication</title></head><body>\n"
+				+ "<strong><font size=\"+1\">Authorization\nfailed.</font></strong>\n"
+				+ "</body></html>\n";
+	}
+
+	public static String mailmanNoSuchListPage(String list) {
+		return "<html><body>\n<h2>Mailman Administrative Database Error</h2>No such list <em>"
+				+ list + "</em></body></html>\n";
+	}
+
+	/**
+	 * The showtokens-consult page of Majordomo2.
+	 */
+	public static String majordomoTokenPage(int[] ids) {
+		StringBuilder sb = new StringBuilder(
+				"<html><head><title>showtokens</title></head><body>\n<table>\n");
+		for (int i = 0; i < ids.length; i++) {
+			String token = token(ids[i]);
+			sb.append("<tr><td><input type=\"checkbox\" name=\"extra\" value=\"")
+					.append(token).append("\"><a href=\"mj_wwwadm?func=tokeninfo&extra=")
+					.append(token).append("\" target=\"_token\">").append(token)
+					.append("</a></td>\n<td>post</td><td>list</td></tr>\n");
+		}
+		sb.append("</table></body></html>\n");
+		return sb.toString();
+	}
+
+	/**
+	 * The tokeninfo page of Majordomo2, for a message with a text part.
+	 */
+	public static String majordomoTokenInfoPage(int id) {
+		StringBuilder sb = new StringBuilder(
+				"<html><head><title>tokeninfo</title></head><body>\n<table>\n");
+		sb.append("<tr><td>From </td><td>").append(sender(id)).append("</td></tr>\n");
+		sb.append("<tr><td>Date </td><td>Mon, 1 Feb 2010 12:00:00 +0100</td></tr>\n");
+		sb.append("<tr><td>Subject </td><td>").append(subject(id)).append("</td></tr>\n");
+		sb.append("</table>\n<pre>\n").append(content(id)).append("</pre>\n");
+		sb.append("</body></html>\n");
+		return sb.toString();
+	}
+
+	public static String majordomoBadPasswordPage() {
+		return "<html><body>\n<pre>The password is invalid.  Some common reasons for this error are:\n</pre></body></html>\n";
+	}
+
+	public static String majordomoNoSuchListPage(String list) {
+		return "<html><body>\n<pre>**** The &quot;" + list
+				+ "&quot; mailing list is not supported at this site.\n</pre></body></html>\n";
+	}
+
+	/**
+	 * Page returned for any successful moderation.
+	 */
+	public static String moderatedPage() {
+		return "<html><body>\n<p>Done.</p>\n</body></html>\n";
+	}
+
+	/**
+	 * Get the message ids 1 to n.
+	 */
+	public static int[] ids(int n) {
+		int[] ids = new int[n];
+		for (int i = 0; i < n; i++)
+			ids[i] = i + 1;
+		return ids;
+	}
+}
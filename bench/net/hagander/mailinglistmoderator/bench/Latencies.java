@@ -0,0 +1,68 @@
+/*
+ * Latencies.java - This class holds latency measurements for the load tests.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.bench;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Vector;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Latencies of one kind of operation, and the number of times it
+ *         failed, printed as a line of percentiles.
+ */
+class Latencies {
+	private final Vector<Double> values = new Vector<Double>();
+	private int failures = 0;
+
+	public synchronized void add(long nanos) {
+		values.add(nanos / 1000000.0);
+	}
+
+	public synchronized void fail() {
+		failures++;
+	}
+
+	private double percentile(double[] sorted, double p) {
+		int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+	}
+
+	/**
+	 * Print the header for the lines printed by print().
+	 */
+	public static void printHeader(String what, String operation) {
+		System.out.println(String.format(Locale.US,
+				"%-14s %-12s %6s %6s %9s %9s %9s %9s %9s", what, operation,
+				"Count", "Failed", "Mean ms", "p50", "p90", "p99", "Max"));
+	}
+
+	public synchronized void print(String provider, String operation) {
+		double[] sorted = new double[values.size()];
+		double sum = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = values.get(i);
+			sum += sorted[i];
+		}
+		Arrays.sort(sorted);
+		if (sorted.length == 0) {
+			System.out.println(String.format(Locale.US,
+					"%-14s %-12s %6d %6d", provider, operation, 0,
+					failures));
+			return;
+		}
+		System.out.println(String.format(Locale.US,
+				"%-14s %-12s %6d %6d %9.1f %9.1f %9.1f %9.1f %9.1f",
+				provider, operation, sorted.length, failures, sum
+						/ sorted.length, percentile(sorted, 50),
+				percentile(sorted, 90), percentile(sorted, 99),
+				sorted[sorted.length - 1]));
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * LoadTest.java - This class holds a load test of refreshing and moderating lists.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+
+import net.hagander.mailinglistmoderator.backend.ExchangeArchive;
+import net.hagander.mailinglistmoderator.backend.FetchScheduler;
+import net.hagander.mailinglistmoderator.backend.ListServer;
+import net.hagander.mailinglistmoderator.backend.MailMessage;
+import net.hagander.mailinglistmoderator.backend.ListServer.ListServerStatusCallbacks;
+import net.hagander.mailinglistmoderator.backend.MailMessage.statuslevel;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Runs the real providers against a MockListServer, and reports the
+ *         end-to-end latency of refreshing a list and of applying moderation
+ *         to it.
+ *
+ *         The refresh phase refreshes all lists through the FetchScheduler,
+ *         the same way the application does, a number of rounds with some new
+ *         messages arriving on each list before every round. The apply phase
+ *         fills each queue up again, refreshes it, marks every message as
+ *         accepted or rejected, and applies the moderation, checking that
+ *         the queue on the server ends up empty. Applies that fail, for
+ *         example because of an injected error, have their times reported
+ *         on an apply-failed line of their own.
+ *
+ *         With -record, all requests are also recorded to an archive that
+ *         can be replayed with ReplayTest.
+ *
+ *         Usage: LoadTest [-provider mailman|mailman-lazy|majordomo2]
+ *         [-lists n] [-messages n] [-rounds n] [-arrivals n] [-latency ms]
+ *         [-bandwidth bytes/s] [-errors rate] [-nocompress] [-seed n]
+ *         [-record file]
+ */
+public class LoadTest {
+	private static final String PASSWORD = "secret";
+
+	private static int lists = 4;
+	private static int messages = 100;
+	private static int rounds = 20;
+	private static int arrivals = 1;
+	private static int latency = 50;
+	private static long bandwidth = 0;
+	private static double errorRate = 0;
+	private static boolean compress = true;
+	private static long seed = 1;
+
+	public static void main(String[] args) throws Exception {
+		Vector<String> providers = new Vector<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-provider"))
+				providers.add(args[++i]);
+			else if (args[i].equals("-lists"))
+				lists = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-messages"))
+				messages = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-rounds"))
+				rounds = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-arrivals"))
+				arrivals = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-latency"))
+				latency = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-bandwidth"))
+				bandwidth = Long.parseLong(args[++i]);
+			else if (args[i].equals("-errors"))
+				errorRate = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-nocompress"))
+				compress = false;
+			else if (args[i].equals("-seed"))
+				seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("-record"))
+				ListServer.setExchangeArchive(ExchangeArchive.record(new File(
+						args[++i])));
+			else
+				throw new IllegalArgumentException(String.format(
+						"Unknown argument %s", args[i]));
+		}
+		if (providers.isEmpty()) {
+			providers.add("mailman");
+			providers.add("mailman-lazy");
+			providers.add("majordomo2");
+		}
+
+		System.out.println(String.format(
+				"%d lists, %d messages, %d rounds, %d ms latency, %s, %.0f%% errors",
+				lists, messages, rounds, latency,
+				(bandwidth > 0) ? bandwidth + " bytes/s" : "unlimited bandwidth",
+				errorRate * 100));
+		Latencies.printHeader("Provider", "Phase");
+		for (int i = 0; i < providers.size(); i++)
+			run(providers.get(i));
+		if (ListServer.getExchangeArchive() != null)
+			ListServer.getExchangeArchive().close();
+		System.exit(0);
+	}
+
+	/**
+	 * Run both phases against one provider, on a server of its own.
+	 */
+	private static void run(String provider) throws IOException,
+			InterruptedException {
+		MockListServer mock = new MockListServer(PASSWORD, seed);
+		mock.setLatency(latency);
+		mock.setBandwidth(bandwidth);
+		mock.setErrorRate(errorRate);
+		mock.setCompress(compress);
+		mock.start();
+		try {
+			String url = provider.equals("majordomo2") ? mock
+					.getMajordomoUrl() : mock.getMailmanUrl();
+			Vector<ListServer> servers = new Vector<ListServer>();
+			for (int i = 0; i < lists; i++) {
+				String name = String.format("%s-list%d", provider, i + 1);
+				mock.addMessages(name, messages);
+				ListServer s = ListServer.Create(name, url, PASSWORD, "", "");
+				s.setLazyContent(provider.equals("mailman-lazy"));
+				servers.add(s);
+			}
+
+			Latencies refresh = new Latencies();
+			Latencies round = new Latencies();
+			for (int r = 0; r < rounds; r++) {
+				for (int i = 0; i < servers.size(); i++)
+					mock.addMessages(servers.get(i).getName(), arrivals);
+				long start = System.nanoTime();
+				refreshAll(servers, refresh);
+				round.add(System.nanoTime() - start);
+			}
+			refresh.print(provider, "refresh");
+			round.print(provider, "all");
+
+			Latencies apply = new Latencies();
+			Latencies applyFailed = new Latencies();
+			for (int r = 0; r < rounds; r++) {
+				for (int i = 0; i < servers.size(); i++) {
+					ListServer s = servers.get(i);
+					mock.addMessages(s.getName(), messages
+							- mock.getQueueSize(s.getName()));
+					applyAll(mock, s, apply, applyFailed);
+				}
+			}
+			apply.print(provider, "apply");
+			applyFailed.print(provider, "apply-failed");
+			System.out.println(String.format("%-14s %d requests, %d failed on purpose",
+					provider, mock.getRequestCount(), mock.getErrorCount()));
+		} finally {
+			mock.stop();
+		}
+	}
+
+	/**
+	 * Refresh all lists at the same time, and wait for them to finish.
+	 */
+	private static void refreshAll(Vector<ListServer> servers,
+			final Latencies latencies) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(servers.size());
+		FetchScheduler scheduler = FetchScheduler.getInstance();
+		for (int i = 0; i < servers.size(); i++) {
+			final ListServer s = servers.get(i);
+			scheduler.submit(s.getHost(), new Runnable() {
+				public void run() {
+					long start = System.nanoTime();
+					try {
+						if (s.Populate() != null)
+							latencies.add(System.nanoTime() - start);
+						else
+							latencies.fail();
+					} catch (RuntimeException e) {
+						latencies.fail();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+	}
+
+	/**
+	 * Moderate everything on a list. An apply where any request failed is
+	 * counted as a failure in latencies, and its time is added to
+	 * failedLatencies, so the time spent is still seen with injected errors.
+	 */
+	private static void applyAll(MockListServer mock, ListServer s,
+			Latencies latencies, Latencies failedLatencies) {
+		try {
+			if (s.Populate() == null) {
+				latencies.fail();
+				return;
+			}
+		} catch (RuntimeException e) {
+			latencies.fail();
+			return;
+		}
+		Vector<MailMessage> queue = s.getMessages();
+		for (int i = 0; i < queue.size(); i++)
+			queue.get(i).setStatus((i % 2 == 0) ? statuslevel.Accept
+					: statuslevel.Reject);
+
+		final boolean[] failed = { false };
+		long start = System.nanoTime();
+		boolean ok;
+		try {
+			ok = s.applyChanges(new ListServerStatusCallbacks() {
+				public void SetStatusMessage(String msg) {
+				}
+
+				public void SetProgressbarValue(int value) {
+				}
+
+				public void ShowError(String msg) {
+					failed[0] = true;
+				}
+
+				public void SetMessageCount(int size) {
+				}
+			});
+		} catch (RuntimeException e) {
+			ok = false;
+		}
+		long time = System.nanoTime() - start;
+		if (!ok || failed[0] || mock.getQueueSize(s.getName()) != 0) {
+			latencies.fail();
+			failedLatencies.add(time);
+		} else
+			latencies.add(time);
+	}
+}
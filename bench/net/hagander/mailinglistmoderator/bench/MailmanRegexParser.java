@@ -0,0 +1,73 @@
+/*
+ * MailmanRegexParser.java - This class holds the regex based Mailman page parsing, as a baseline.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.bench;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.hagander.mailinglistmoderator.backend.providers.MailmanPageParser;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         The way the Mailman provider used to parse the details=all page,
+ *         with DOTALL regexes over the whole page, before MailmanPageParser
+ *         replaced it. Kept here, with the same patterns, so the scanner can
+ *         be compared to it for both speed and output.
+ */
+class MailmanRegexParser {
+	private static final Pattern enumMailPattern = Pattern
+			.compile(
+					"<table CELLPADDING=\"0\" WIDTH=\"100%\" CELLSPACING=\"0\">(.*?)</table>\\s+<p>",
+					Pattern.DOTALL);
+	private static final Pattern messageContentPattern = Pattern
+			.compile(
+					"<td ALIGN=\"right\"><strong>From:</strong></td>\\s+<td>([^<]+)</td>.*?<td ALIGN=\"right\"><strong>Subject:</strong></td>\\s+<td>([^<]*)</td>.*?<td><TEXTAREA NAME=fulltext-(\\d+) ROWS=10 COLS=76 WRAP=soft READONLY>([^<]+)</TEXTAREA></td>",
+					Pattern.DOTALL);
+	private static final Pattern authorizationFailedPattern = Pattern
+			.compile(
+					"<strong><font size=\"\\+1\">Authorization\\s+failed.</font></strong>",
+					Pattern.DOTALL);
+
+	/**
+	 * Parse a whole page, passing each message to the callback.
+	 *
+	 * @return the error found on the page, with the same text as
+	 *         MailmanPageParser.getError(), or null if there was none
+	 */
+	public static String parse(String page,
+			MailmanPageParser.MessageCallback callback) {
+		/*
+		 * Check for no such list
+		 */
+		if (page.contains("<h2>Mailman Administrative Database Error</h2>No such list <em>"))
+			return "List does not exist on server";
+
+		/*
+		 * Check for login failure
+		 */
+		if (authorizationFailedPattern.matcher(page).find())
+			return "Authorization failed - invalid password?";
+
+		Matcher m = enumMailPattern.matcher(page);
+		while (m.find()) {
+			Matcher sm = messageContentPattern.matcher(m.group(1));
+			if (sm.find()) {
+				// Got a message
+				// group(1) == from
+				// group(2) == subject
+				// group(3) == id
+				// group(4) == contents
+				callback.foundMessage(Integer.parseInt(sm.group(3)), sm
+						.group(1), sm.group(2), sm.group(4));
+			}
+		}
+		return null;
+	}
+}
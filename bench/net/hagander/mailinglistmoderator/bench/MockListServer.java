@@ -0,0 +1,414 @@
+/*
+ * MockListServer.java - This class holds a local stand-in for Mailman and Majordomo2 servers.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         An HTTP server on the loopback interface answering the requests
+ *         the providers make, from generated queues of held messages. It
+ *         serves the Mailman admindb pages (details=all, the overview and
+ *         single messages) and accepts the moderation form, and serves the
+ *         Majordomo2 showtokens-consult and tokeninfo pages and the accept
+ *         and reject-quiet functions.
+ *
+ *         To look like a real server over a real network, each response can
+ *         be delayed, sent at a limited bandwidth, and replaced with an
+ *         error at a given rate. Errors are picked from a seeded random
+ *         generator, so a run can be repeated.
+ */
+public class MockListServer {
+	private static final String MAILMAN_PATH = "/mailman/admindb";
+	private static final String MAJORDOMO_PATH = "/mj/mj_wwwadm";
+	/* Responses are written in pieces of this size when throttled */
+	private static final int CHUNK_SIZE = 4096;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final String password;
+	private final Random random;
+
+	private volatile int latency = 0;
+	private volatile long bandwidth = 0;
+	private volatile double errorRate = 0;
+	private volatile boolean compress = true;
+
+	/* Held messages of each list, by id */
+	private final HashMap<String, TreeSet<Integer>> lists = new HashMap<String, TreeSet<Integer>>();
+	/* Message id of each Majordomo2 token */
+	private final HashMap<String, Integer> tokens = new HashMap<String, Integer>();
+	private int nextId = 1;
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong errorCount = new AtomicLong();
+
+	/**
+	 * Create a server on a free port. It's not started until start() is
+	 * called.
+	 *
+	 * @param password
+	 *            Password the clients have to send
+	 * @param seed
+	 *            Seed for picking which requests fail
+	 */
+	public MockListServer(String password, long seed) throws IOException {
+		this.password = password;
+		this.random = new Random(seed);
+		server = HttpServer.create(new InetSocketAddress(InetAddress
+				.getByName("127.0.0.1"), 0), 50);
+		server.createContext(MAILMAN_PATH + "/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, true);
+			}
+		});
+		server.createContext(MAJORDOMO_PATH, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, false);
+			}
+		});
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Set the time to wait before answering each request.
+	 *
+	 * @param millis
+	 *            Delay in milliseconds
+	 */
+	public void setLatency(int millis) {
+		this.latency = millis;
+	}
+
+	/**
+	 * Set the speed responses are sent at.
+	 *
+	 * @param bytesPerSecond
+	 *            Speed, or 0 to send as fast as possible
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * Set how many requests fail with an internal server error.
+	 *
+	 * @param rate
+	 *            Fraction of requests to fail, between 0 and 1
+	 */
+	public void setErrorRate(double rate) {
+		this.errorRate = rate;
+	}
+
+	/**
+	 * Set if responses are compressed when the client asks for it.
+	 */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * Get the URL to use as root URL for Mailman lists.
+	 */
+	public String getMailmanUrl() {
+		return String.format("http://127.0.0.1:%d%s", server.getAddress()
+				.getPort(), MAILMAN_PATH);
+	}
+
+	/**
+	 * Get the URL to use as root URL for Majordomo2 lists.
+	 */
+	public String getMajordomoUrl() {
+		return String.format("http://127.0.0.1:%d%s", server.getAddress()
+				.getPort(), MAJORDOMO_PATH);
+	}
+
+	/**
+	 * Add new messages to the queue of a list, creating the list if it
+	 * doesn't exist.
+	 *
+	 * @param list
+	 *            Name of the list
+	 * @param count
+	 *            Number of messages to add
+	 */
+	public synchronized void addMessages(String list, int count) {
+		TreeSet<Integer> queue = lists.get(list);
+		if (queue == null) {
+			queue = new TreeSet<Integer>();
+			lists.put(list, queue);
+		}
+		for (int i = 0; i < count; i++) {
+			int id = nextId++;
+			queue.add(id);
+			tokens.put(Fixtures.token(id), id);
+		}
+	}
+
+	/**
+	 * Get the number of messages held on a list.
+	 */
+	public synchronized int getQueueSize(String list) {
+		TreeSet<Integer> queue = lists.get(list);
+		return (queue == null) ? 0 : queue.size();
+	}
+
+	/**
+	 * Get the number of requests answered, including failed ones.
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Get the number of requests that were failed on purpose.
+	 */
+	public long getErrorCount() {
+		return errorCount.get();
+	}
+
+	/**
+	 * Get the ids held on a list, or null if there is no such list.
+	 */
+	private synchronized int[] getIds(String list) {
+		TreeSet<Integer> queue = lists.get(list);
+		if (queue == null)
+			return null;
+		int[] ids = new int[queue.size()];
+		int i = 0;
+		for (Iterator<Integer> it = queue.iterator(); it.hasNext();)
+			ids[i++] = it.next();
+		return ids;
+	}
+
+	private synchronized void removeMessage(String list, int id) {
+		TreeSet<Integer> queue = lists.get(list);
+		if (queue != null && queue.remove(id))
+			tokens.remove(Fixtures.token(id));
+	}
+
+	private synchronized Integer getTokenId(String list, String token) {
+		Integer id = tokens.get(token);
+		if (id == null || !lists.get(list).contains(id))
+			return null;
+		return id;
+	}
+
+	private void serve(HttpExchange exchange, boolean mailman)
+			throws IOException {
+		try {
+			requestCount.incrementAndGet();
+			String body = readBody(exchange.getRequestBody());
+			if (latency > 0)
+				Thread.sleep(latency);
+			if (errorRate > 0 && random.nextDouble() < errorRate) {
+				errorCount.incrementAndGet();
+				send(exchange, 500,
+						"<html><body>Internal Server Error</body></html>\n");
+				return;
+			}
+			if (mailman)
+				serveMailman(exchange, body);
+			else
+				serveMajordomo(exchange);
+		} catch (InterruptedException e) {
+			/* Being stopped */
+		} catch (IOException e) {
+			/* Client went away, nothing to do about it */
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Answer a request to the admindb page of a list, found as
+	 * /mailman/admindb/listname/.
+	 */
+	private void serveMailman(HttpExchange exchange, String body)
+			throws IOException,
+			InterruptedException {
+		String path = exchange.getRequestURI().getPath().substring(
+				MAILMAN_PATH.length() + 1);
+		String list = path.endsWith("/") ? path.substring(0,
+				path.length() - 1) : path;
+		HashMap<String, String> params = parseParams(exchange.getRequestURI()
+				.getRawQuery());
+		params.putAll(parseParams(body));
+
+		int[] ids = getIds(list);
+		if (ids == null) {
+			send(exchange, 200, Fixtures.mailmanNoSuchListPage(list));
+			return;
+		}
+		if (!password.equals(params.get("adminpw"))) {
+			send(exchange, 200, Fixtures.mailmanAuthFailedPage());
+			return;
+		}
+
+		if (exchange.getRequestMethod().equals("POST")) {
+			/* The moderation form, with a field for each message */
+			for (String key : params.keySet()) {
+				int id;
+				try {
+					id = Integer.parseInt(key);
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				String action = params.get(key);
+				if (action.equals("1") || action.equals("3"))
+					removeMessage(list, id);
+			}
+			send(exchange, 200, Fixtures.mailmanSummaryPage(getIds(list)));
+		} else if ("all".equals(params.get("details")))
+			send(exchange, 200, Fixtures.mailmanDetailsPage(ids));
+		else if (params.containsKey("msgid")) {
+			int id = Integer.parseInt(params.get("msgid"));
+			boolean found = false;
+			for (int i = 0; i < ids.length; i++)
+				if (ids[i] == id)
+					found = true;
+			send(exchange, 200, Fixtures.mailmanDetailsPage(found ? new int[] { id }
+					: new int[0]));
+		} else
+			send(exchange, 200, Fixtures.mailmanSummaryPage(ids));
+	}
+
+	/**
+	 * Answer a request to mj_wwwadm, with the list and function in the
+	 * query string.
+	 */
+	private void serveMajordomo(HttpExchange exchange) throws IOException,
+			InterruptedException {
+		HashMap<String, String> params = parseParams(exchange.getRequestURI()
+				.getRawQuery());
+		String list = params.get("list");
+		String func = params.get("func");
+		String extra = params.get("extra");
+
+		int[] ids = (list == null) ? null : getIds(list);
+		if (ids == null) {
+			send(exchange, 200, Fixtures.majordomoNoSuchListPage(list));
+			return;
+		}
+		if (!password.equals(params.get("passw"))) {
+			send(exchange, 200, Fixtures.majordomoBadPasswordPage());
+			return;
+		}
+
+		if ("showtokens-consult".equals(func))
+			send(exchange, 200, Fixtures.majordomoTokenPage(ids));
+		else if ("tokeninfo".equals(func)) {
+			Integer id = (extra == null) ? null : getTokenId(list, extra);
+			send(exchange, 200, (id == null) ? Fixtures.moderatedPage()
+					: Fixtures.majordomoTokenInfoPage(id));
+		} else if ("accept".equals(func) || "reject-quiet".equals(func)) {
+			Integer id = (extra == null) ? null : getTokenId(list, extra);
+			if (id != null)
+				removeMessage(list, id);
+			send(exchange, 200, Fixtures.moderatedPage());
+		} else
+			send(exchange, 404, "<html><body>Unknown function</body></html>\n");
+	}
+
+	/**
+	 * Send a response, compressed if the client accepts it, at the
+	 * configured bandwidth.
+	 */
+	private void send(HttpExchange exchange, int code, String page)
+			throws IOException, InterruptedException {
+		byte[] data = page.getBytes("utf-8");
+		String accept = exchange.getRequestHeaders().getFirst(
+				"Accept-Encoding");
+		if (compress && accept != null && accept.contains("gzip")) {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			GZIPOutputStream gz = new GZIPOutputStream(buf);
+			gz.write(data);
+			gz.close();
+			data = buf.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.getResponseHeaders().set("Content-Type",
+				"text/html; charset=utf-8");
+		exchange.sendResponseHeaders(code, data.length);
+
+		OutputStream os = exchange.getResponseBody();
+		long start = System.nanoTime();
+		for (int pos = 0; pos < data.length; pos += CHUNK_SIZE) {
+			int len = Math.min(CHUNK_SIZE, data.length - pos);
+			os.write(data, pos, len);
+			if (bandwidth > 0) {
+				/* Sleep until this much should have been sent */
+				long due = start + (pos + len) * 1000000000L / bandwidth;
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					os.flush();
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				}
+			}
+		}
+		os.close();
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		byte[] b = new byte[4096];
+		int len;
+		while ((len = in.read(b)) != -1)
+			buf.write(b, 0, len);
+		return buf.toString("US-ASCII");
+	}
+
+	/**
+	 * Parse a query string or form body.
+	 */
+	private static HashMap<String, String> parseParams(String s)
+			throws IOException {
+		HashMap<String, String> params = new HashMap<String, String>();
+		if (s == null || s.length() == 0)
+			return params;
+		String[] pairs = s.split("&");
+		for (int i = 0; i < pairs.length; i++) {
+			int eq = pairs[i].indexOf('=');
+			if (eq < 0)
+				continue;
+			params.put(URLDecoder.decode(pairs[i].substring(0, eq), "utf-8"),
+					URLDecoder.decode(pairs[i].substring(eq + 1), "utf-8"));
+		}
+		return params;
+	}
+}
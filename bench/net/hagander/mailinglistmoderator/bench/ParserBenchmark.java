@@ -0,0 +1,439 @@
+/*
+ * ParserBenchmark.java - This class holds benchmarks for the page parsers of the providers.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Vector;
+
+import net.hagander.mailinglistmoderator.backend.MailMessage;
+import net.hagander.mailinglistmoderator.backend.providers.Mailman;
+import net.hagander.mailinglistmoderator.backend.providers.MailmanPageParser;
+import net.hagander.mailinglistmoderator.backend.providers.Majordomo2;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Measures the throughput and allocation rate of parsing the pages of
+ *         each provider, without any network access. The pages are either
+ *         generated with a given number of held messages, or recorded pages
+ *         read from a directory.
+ *
+ *         Each benchmark is first run for a number of warmup iterations to
+ *         let the JIT settle, and then for a number of measured iterations.
+ *         Allocation is measured using the per-thread allocation counter of
+ *         the JVM, where available.
+ *
+ *         The Mailman details page is also parsed with the regexes it was
+ *         parsed with before MailmanPageParser, as a baseline. Before
+ *         measuring anything, both are run on every Mailman page, including
+ *         the error pages, and must find exactly the same messages. The
+ *         scanner is run both with normal reads and with reads of a few
+ *         characters at a time.
+ *
+ *         Usage: ParserBenchmark [-time ms] [-iterations n] [-fixtures dir]
+ *         [size ...]
+ *
+ *         Recorded pages are read from the fixtures directory, named
+ *         mailman-details.html, mailman-summary.html,
+ *         majordomo-showtokens.html and majordomo-tokeninfo.html. Any of
+ *         them may be missing.
+ */
+public class ParserBenchmark {
+	/* Results are added to this, so the JIT can't remove the work */
+	private static volatile long sink;
+
+	private static long iterationTime = 1000;
+	private static int iterations = 5;
+
+	/**
+	 * A single piece of work to measure.
+	 */
+	private static abstract class Benchmark {
+		private final String name;
+		private final String size;
+
+		public Benchmark(String name, String size) {
+			this.name = name;
+			this.size = size;
+		}
+
+		/**
+		 * Run one operation.
+		 *
+		 * @return the number of messages processed
+		 */
+		public abstract int run() throws IOException;
+	}
+
+	/**
+	 * A message, since the real ones are private to their providers.
+	 */
+	private static class BenchMessage extends MailMessage {
+		private final String id;
+
+		public BenchMessage(String id, String sender, String subject,
+				String content) {
+			super(sender, subject, content);
+			this.id = id;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Vector<Integer> sizes = new Vector<Integer>();
+		File fixtures = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-time"))
+				iterationTime = Long.parseLong(args[++i]);
+			else if (args[i].equals("-iterations"))
+				iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-fixtures"))
+				fixtures = new File(args[++i]);
+			else
+				sizes.add(Integer.parseInt(args[i]));
+		}
+		if (sizes.isEmpty()) {
+			sizes.add(10);
+			sizes.add(100);
+			sizes.add(1000);
+			sizes.add(10000);
+		}
+
+		Vector<Benchmark> benchmarks = new Vector<Benchmark>();
+		for (int i = 0; i < sizes.size(); i++) {
+			int n = sizes.get(i);
+			String size = String.valueOf(n);
+			int[] ids = Fixtures.ids(n);
+			String details = Fixtures.mailmanDetailsPage(ids);
+			checkMailmanDetails(size, details);
+			addMailmanDetails(benchmarks, size, details);
+			addMailmanDetailsRegex(benchmarks, size, details);
+			addMailmanSummaries(benchmarks, size, Fixtures
+					.mailmanSummaryPage(ids));
+			addMajordomoTokens(benchmarks, size, Fixtures
+					.majordomoTokenPage(ids));
+			String[] pages = new String[n];
+			for (int j = 0; j < n; j++)
+				pages[j] = Fixtures.majordomoTokenInfoPage(ids[j]);
+			addMajordomoTokenInfo(benchmarks, size, pages);
+			addMessages(benchmarks, size, n);
+		}
+		if (fixtures != null) {
+			String page = readFixture(fixtures, "mailman-details.html");
+			if (page != null) {
+				checkMailmanDetails("recorded", page);
+				addMailmanDetails(benchmarks, "recorded", page);
+				addMailmanDetailsRegex(benchmarks, "recorded", page);
+			}
+			page = readFixture(fixtures, "mailman-summary.html");
+			if (page != null)
+				addMailmanSummaries(benchmarks, "recorded", page);
+			page = readFixture(fixtures, "majordomo-showtokens.html");
+			if (page != null)
+				addMajordomoTokens(benchmarks, "recorded", page);
+			page = readFixture(fixtures, "majordomo-tokeninfo.html");
+			if (page != null)
+				addMajordomoTokenInfo(benchmarks, "recorded",
+						new String[] { page });
+		}
+
+		checkMailmanDetails("auth failed", Fixtures.mailmanAuthFailedPage());
+		checkMailmanDetails("no such list", Fixtures
+				.mailmanNoSuchListPage("test"));
+
+		System.out.println(String.format(Locale.US,
+				"%-22s %9s %12s %14s %12s %14s", "Benchmark", "Size",
+				"ops/s", "messages/s", "alloc MB/s", "alloc B/op"));
+		for (int i = 0; i < benchmarks.size(); i++)
+			measure(benchmarks.get(i));
+	}
+
+	/**
+	 * Run a benchmark and print the results.
+	 */
+	private static void measure(Benchmark b) throws IOException {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocMx = null;
+		if (mx instanceof com.sun.management.ThreadMXBean)
+			allocMx = (com.sun.management.ThreadMXBean) mx;
+		long thread = Thread.currentThread().getId();
+
+		/* Warmup, same number of iterations as measured */
+		for (int i = 0; i < iterations; i++)
+			runFor(b, iterationTime);
+
+		long ops = 0;
+		long messages = 0;
+		long start = System.nanoTime();
+		long allocStart = (allocMx != null) ? allocMx
+				.getThreadAllocatedBytes(thread) : 0;
+		for (int i = 0; i < iterations; i++) {
+			long[] r = runFor(b, iterationTime);
+			ops += r[0];
+			messages += r[1];
+		}
+		long allocated = (allocMx != null) ? allocMx
+				.getThreadAllocatedBytes(thread)
+				- allocStart : -1;
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format(Locale.US,
+				"%-22s %9s %12.1f %14.0f %12s %14s", b.name, b.size, ops
+						/ seconds, messages / seconds,
+				(allocated < 0) ? "-" : String.format(Locale.US, "%.1f",
+						allocated / seconds / (1024 * 1024)),
+				(allocated < 0) ? "-" : String.valueOf(allocated / ops)));
+	}
+
+	/**
+	 * Run a benchmark repeatedly for (at least) the given time.
+	 *
+	 * @return the number of operations and messages
+	 */
+	private static long[] runFor(Benchmark b, long millis) throws IOException {
+		long end = System.nanoTime() + millis * 1000000L;
+		long ops = 0;
+		long messages = 0;
+		do {
+			messages += b.run();
+			ops++;
+		} while (System.nanoTime() < end);
+		return new long[] { ops, messages };
+	}
+
+	private static void addMailmanDetails(Vector<Benchmark> benchmarks,
+			String size, final String page) {
+		benchmarks.add(new Benchmark("mailman.details", size) {
+			public int run() throws IOException {
+				final Vector<MailMessage> messages = new Vector<MailMessage>();
+				MailmanPageParser parser = new MailmanPageParser(
+						new MailmanPageParser.MessageCallback() {
+							public void foundMessage(int id, String sender,
+									String subject, String content) {
+								messages.add(new BenchMessage(String
+										.valueOf(id), sender, subject, content));
+							}
+						});
+				parser.parse(new StringReader(page));
+				if (parser.getError() != null)
+					throw new RuntimeException(parser.getError());
+				sink += messages.size();
+				return messages.size();
+			}
+		});
+	}
+
+	private static void addMailmanDetailsRegex(Vector<Benchmark> benchmarks,
+			String size, final String page) {
+		benchmarks.add(new Benchmark("mailman.details.regex", size) {
+			public int run() {
+				final Vector<MailMessage> messages = new Vector<MailMessage>();
+				String error = MailmanRegexParser.parse(page,
+						new MailmanPageParser.MessageCallback() {
+							public void foundMessage(int id, String sender,
+									String subject, String content) {
+								messages.add(new BenchMessage(String
+										.valueOf(id), sender, subject, content));
+							}
+						});
+				if (error != null)
+					throw new RuntimeException(error);
+				sink += messages.size();
+				return messages.size();
+			}
+		});
+	}
+
+	/**
+	 * Collects what a parser found, to compare it with another parser.
+	 */
+	private static class Collector implements MailmanPageParser.MessageCallback {
+		private final StringBuilder sb = new StringBuilder();
+		private int count = 0;
+
+		public void foundMessage(int id, String sender, String subject,
+				String content) {
+			sb.append(id).append('\0').append(sender).append('\0').append(
+					subject).append('\0').append(content).append('\0');
+			count++;
+		}
+	}
+
+	/**
+	 * Make sure the scanner finds exactly what the regexes do on a page,
+	 * reading it both normally and a few characters at a time.
+	 */
+	private static void checkMailmanDetails(String size, String page)
+			throws IOException {
+		Collector expected = new Collector();
+		String expectedError = MailmanRegexParser.parse(page, expected);
+
+		int[] readSizes = { 8192, 7 };
+		for (int i = 0; i < readSizes.length; i++) {
+			Collector found = new Collector();
+			MailmanPageParser parser = new MailmanPageParser(found);
+			parser.parse(new ChunkedReader(page, readSizes[i]));
+			boolean sameError = (expectedError == null) ? parser.getError() == null
+					: expectedError.equals(parser.getError());
+			/* The scanner stops at an error, so only compare messages without */
+			if (!sameError
+					|| (expectedError == null && !found.sb.toString().equals(
+							expected.sb.toString())))
+				throw new RuntimeException(String.format(
+						"Scanner and regex differ on %s page with reads of %d: %d vs %d messages, error '%s' vs '%s'",
+						size, readSizes[i], found.count, expected.count,
+						parser.getError(), expectedError));
+		}
+		System.out.println(String.format(
+				"Scanner matches regex on %s page: %d messages%s", size,
+				expected.count, (expectedError != null) ? ", error '"
+						+ expectedError + "'" : ""));
+	}
+
+	/**
+	 * A reader returning at most a given number of characters per read.
+	 */
+	private static class ChunkedReader extends StringReader {
+		private final int readSize;
+
+		public ChunkedReader(String s, int readSize) {
+			super(s);
+			this.readSize = readSize;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			return super.read(cbuf, off, Math.min(len, readSize));
+		}
+	}
+
+	private static void addMailmanSummaries(Vector<Benchmark> benchmarks,
+			String size, final String page) {
+		benchmarks.add(new Benchmark("mailman.summaries", size) {
+			public int run() throws IOException {
+				final Vector<MailMessage> messages = new Vector<MailMessage>();
+				/* The error check is a separate pass over the page */
+				MailmanPageParser parser = new MailmanPageParser(
+						new MailmanPageParser.MessageCallback() {
+							public void foundMessage(int id, String sender,
+									String subject, String content) {
+							}
+						});
+				parser.parse(new StringReader(page));
+				if (parser.getError() != null)
+					throw new RuntimeException(parser.getError());
+				Mailman.ParseSummaries(page,
+						new MailmanPageParser.MessageCallback() {
+							public void foundMessage(int id, String sender,
+									String subject, String content) {
+								messages.add(new BenchMessage(String
+										.valueOf(id), sender, subject, content));
+							}
+						});
+				sink += messages.size();
+				return messages.size();
+			}
+		});
+	}
+
+	private static void addMajordomoTokens(Vector<Benchmark> benchmarks,
+			String size, final String page) {
+		benchmarks.add(new Benchmark("majordomo.showtokens", size) {
+			public int run() {
+				String error = Majordomo2.ParseTokenListError(page);
+				if (error != null)
+					throw new RuntimeException(error);
+				Vector<String> tokens = Majordomo2.ParseTokenList(page);
+				sink += tokens.size();
+				return tokens.size();
+			}
+		});
+	}
+
+	private static void addMajordomoTokenInfo(Vector<Benchmark> benchmarks,
+			String size, final String[] pages) {
+		benchmarks.add(new Benchmark("majordomo.tokeninfo", size) {
+			public int run() {
+				for (int i = 0; i < pages.length; i++) {
+					String[] details = Majordomo2.ParseTokenDetails(pages[i]);
+					if (details == null)
+						throw new RuntimeException("Tokeninfo page not parsed");
+					MailMessage m = new BenchMessage(String.valueOf(i),
+							Majordomo2.trivialDecode(details[0]), Majordomo2
+									.trivialDecode(details[1]), details[2]);
+					sink += m.getSubject().length();
+				}
+				return pages.length;
+			}
+		});
+	}
+
+	/**
+	 * Benchmarks of the pieces every provider uses for each message.
+	 */
+	private static void addMessages(Vector<Benchmark> benchmarks, String size,
+			final int n) {
+		final String[] senders = new String[n];
+		final String[] subjects = new String[n];
+		final String[] contents = new String[n];
+		for (int i = 0; i < n; i++) {
+			senders[i] = Fixtures.sender(i + 1);
+			subjects[i] = Fixtures.subject(i + 1);
+			contents[i] = Fixtures.content(i + 1);
+		}
+		benchmarks.add(new Benchmark("trivialDecode", size) {
+			public int run() {
+				for (int i = 0; i < n; i++) {
+					sink += Majordomo2.trivialDecode(senders[i]).length();
+					sink += Majordomo2.trivialDecode(subjects[i]).length();
+				}
+				return n;
+			}
+		});
+		benchmarks.add(new Benchmark("MailMessage.<init>", size) {
+			public int run() {
+				for (int i = 0; i < n; i++) {
+					MailMessage m = new BenchMessage(String.valueOf(i),
+							senders[i], subjects[i], contents[i]);
+					sink += m.getContent().length();
+				}
+				return n;
+			}
+		});
+	}
+
+	private static String readFixture(File dir, String name) throws IOException {
+		File f = new File(dir, name);
+		if (!f.exists())
+			return null;
+		Reader r = new InputStreamReader(new FileInputStream(f), "utf-8");
+		try {
+			StringBuilder sb = new StringBuilder();
+			char[] buf = new char[8192];
+			int len;
+			while ((len = r.read(buf)) != -1)
+				sb.append(buf, 0, len);
+			return sb.toString();
+		} finally {
+			r.close();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * PollSimulation.java - This class holds a simulation of the background checks against a simulated clock.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.bench;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.Vector;
+
+import net.hagander.mailinglistmoderator.backend.ArrivalRate;
+import net.hagander.mailinglistmoderator.backend.PollScheduler;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Runs the PollScheduler the way SyncService does, against a
+ *         simulated clock, for a number of simulated days, and compares it
+ *         with checking every list at every tick.
+ *
+ *         Messages arrive on each list at random, at a fixed average rate
+ *         per list. Every tick, the lists the scheduler says are due are
+ *         checked, which finds the messages that arrived since the last
+ *         check and updates the ArrivalRate of the list. The simulation
+ *         reports the number of checks made and how long messages waited
+ *         before being found, separately for busy and quiet lists.
+ *
+ *         Usage: PollSimulation [-days n] [-busy rate,rate,...] [-quiet n]
+ *         [-quietrate rate] [-seed n]
+ *
+ *         Rates are in messages per hour. By default there are two busy
+ *         lists with 24 and 12 messages per hour, and 20 quiet ones with
+ *         one message per month.
+ */
+public class PollSimulation {
+	private static final long MINUTE = 60 * 1000L;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+
+	/* Same as SyncService */
+	private static final long INTERVAL = 15 * MINUTE;
+	private static final long MAX_INTERVAL = 12 * HOUR;
+
+	private static int days = 30;
+	private static double[] busyRates = { 24, 12 };
+	private static int quietLists = 20;
+	private static double quietRate = 1.0 / (30 * 24);
+	private static long seed = 1;
+
+	/**
+	 * Clock that only moves when the simulation moves it.
+	 */
+	private static class SimulatedClock implements PollScheduler.Clock {
+		private long now = 0;
+
+		public long now() {
+			return now;
+		}
+	}
+
+	/**
+	 * One simulated list.
+	 */
+	private static class SimulatedList {
+		private final boolean busy;
+		private final double rate;
+		private final Random random;
+		private final ArrivalRate arrivals = new ArrivalRate();
+		/* Arrival times of the messages not found yet */
+		private final Vector<Long> waiting = new Vector<Long>();
+		private long nextArrival;
+
+		private long checks = 0;
+		private long found = 0;
+		private long totalDelay = 0;
+		private long maxDelay = 0;
+
+		public SimulatedList(boolean busy, double rate, Random random) {
+			this.busy = busy;
+			this.rate = rate;
+			this.random = random;
+			nextArrival = nextArrivalAfter(0);
+		}
+
+		/**
+		 * Pick the time of the next message, with exponentially distributed
+		 * time between messages.
+		 */
+		private long nextArrivalAfter(long t) {
+			return t + (long) (-Math.log(1 - random.nextDouble()) / rate * HOUR);
+		}
+
+		/**
+		 * Let messages arrive up until the given time.
+		 */
+		public void advance(long now) {
+			while (nextArrival <= now) {
+				waiting.add(nextArrival);
+				nextArrival = nextArrivalAfter(nextArrival);
+			}
+		}
+
+		/**
+		 * Check the list, finding all messages waiting on it.
+		 */
+		public void check(long now) {
+			checks++;
+			for (int i = 0; i < waiting.size(); i++) {
+				long delay = now - waiting.get(i);
+				totalDelay += delay;
+				maxDelay = Math.max(maxDelay, delay);
+			}
+			found += waiting.size();
+			arrivals.record(now, waiting.size());
+			waiting.clear();
+		}
+	}
+
+	public static void main(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-days"))
+				days = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-busy")) {
+				String[] rates = args[++i].split(",");
+				busyRates = new double[rates.length];
+				for (int j = 0; j < rates.length; j++)
+					busyRates[j] = Double.parseDouble(rates[j]);
+			} else if (args[i].equals("-quiet"))
+				quietLists = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-quietrate"))
+				quietRate = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-seed"))
+				seed = Long.parseLong(args[++i]);
+			else
+				throw new IllegalArgumentException(String.format(
+						"Unknown argument %s", args[i]));
+		}
+
+		Random random = new Random(seed);
+		Vector<SimulatedList> lists = new Vector<SimulatedList>();
+		for (int i = 0; i < busyRates.length; i++)
+			lists.add(new SimulatedList(true, busyRates[i], random));
+		for (int i = 0; i < quietLists; i++)
+			lists.add(new SimulatedList(false, quietRate, random));
+
+		SimulatedClock clock = new SimulatedClock();
+		PollScheduler scheduler = new PollScheduler(INTERVAL, MAX_INTERVAL,
+				clock);
+		long ticks = 0;
+		for (long t = 0; t <= days * DAY; t += INTERVAL) {
+			clock.now = t;
+			ticks++;
+			for (int i = 0; i < lists.size(); i++) {
+				SimulatedList l = lists.get(i);
+				l.advance(t);
+				if (scheduler.isDue(l.arrivals))
+					l.check(t);
+			}
+		}
+
+		long checks = 0;
+		for (int i = 0; i < lists.size(); i++)
+			checks += lists.get(i).checks;
+		long everyTick = ticks * lists.size();
+		System.out.println(String.format(Locale.US,
+				"%d days, %d busy and %d quiet lists, checked every %d minutes at most",
+				days, busyRates.length, quietLists, INTERVAL / MINUTE));
+		System.out.println(String.format(Locale.US,
+				"%d checks, %.1f%% of the %d needed to check every list every tick",
+				checks, 100.0 * checks / everyTick, everyTick));
+		report(lists, true);
+		report(lists, false);
+	}
+
+	/**
+	 * Print the checks and delays for either the busy or the quiet lists.
+	 */
+	private static void report(Vector<SimulatedList> lists, boolean busy) {
+		long checks = 0;
+		long found = 0;
+		long totalDelay = 0;
+		long maxDelay = 0;
+		for (int i = 0; i < lists.size(); i++) {
+			SimulatedList l = lists.get(i);
+			if (l.busy != busy)
+				continue;
+			checks += l.checks;
+			found += l.found;
+			totalDelay += l.totalDelay;
+			maxDelay = Math.max(maxDelay, l.maxDelay);
+		}
+		System.out.println(String.format(Locale.US,
+				"%-6s %7d checks, %6d messages found, delay mean %.1f min, max %.1f min",
+				busy ? "busy" : "quiet", checks, found,
+				(found > 0) ? (double) totalDelay / found / MINUTE : 0,
+				(double) maxDelay / MINUTE));
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * ReplayTest.java - This class holds a test refreshing lists from a recorded session.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.bench;
+
+import java.io.File;
+import java.util.Vector;
+
+import net.hagander.mailinglistmoderator.backend.ExchangeArchive;
+import net.hagander.mailinglistmoderator.backend.ListMetrics;
+import net.hagander.mailinglistmoderator.backend.ListServer;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Refreshes the lists of a recorded session, answering all requests
+ *         from the recording. This repeats the refreshes of real queues
+ *         without any network access, either taking as long as the
+ *         original requests did, or as fast as possible to measure just the
+ *         work done on our side.
+ *
+ *         Each round refreshes every list once. Repeated requests get the
+ *         recorded responses in order, so the rounds replay the refreshes
+ *         of the recorded session one by one.
+ *
+ *         Usage: ReplayTest [-fast] [-rounds n] archive
+ */
+public class ReplayTest {
+	public static void main(String[] args) throws Exception {
+		boolean fast = false;
+		int rounds = 1;
+		String file = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-fast"))
+				fast = true;
+			else if (args[i].equals("-rounds"))
+				rounds = Integer.parseInt(args[++i]);
+			else
+				file = args[i];
+		}
+		if (file == null)
+			throw new IllegalArgumentException("No recording given");
+
+		ExchangeArchive archive = ExchangeArchive.replay(new File(file), !fast);
+		ListServer.setExchangeArchive(archive);
+		Vector<ListServer> servers = archive.createListServers();
+		System.out.println(String.format(
+				"%d lists, %d recorded requests, %s timings", servers.size(),
+				archive.getExchangeCount(), fast ? "no" : "original"));
+
+		Latencies.printHeader("List", "Phase");
+		for (int i = 0; i < servers.size(); i++) {
+			ListServer s = servers.get(i);
+			Latencies refresh = new Latencies();
+			for (int r = 0; r < rounds; r++) {
+				long start = System.nanoTime();
+				try {
+					if (s.Populate() != null)
+						refresh.add(System.nanoTime() - start);
+					else
+						refresh.fail();
+				} catch (RuntimeException e) {
+					refresh.fail();
+				}
+			}
+			refresh.print(s.getName(), "refresh");
+			ListMetrics m = s.getMetrics();
+			System.out.println(String.format(
+					"%-14s parse %s ms, messages %s", s.getName(), m
+							.getParse(), m.getMessages()));
+		}
+		System.exit(0);
+	}
+}
@@ -7,13 +7,15 @@
  */
 package net.hagander.mailinglistmoderator;
 
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Map;
 import java.util.Vector;
 
+import net.hagander.mailinglistmoderator.backend.FetchScheduler;
 import net.hagander.mailinglistmoderator.backend.ListServer;
+import net.hagander.mailinglistmoderator.backend.QueueDelta;
+import net.hagander.mailinglistmoderator.backend.ServerIndex;
 import net.hagander.mailinglistmoderator.glue.ListServerAdapter;
+import net.hagander.mailinglistmoderator.glue.UiUpdateDispatcher;
 import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.content.Intent;
@@ -34,12 +36,24 @@ import android.widget.AdapterView.OnItemClickListener;
  */
 public class MailinglistModerator extends ListActivity {
 	public static Vector<ListServer> servers;
+	/* The servers in the order they are shown */
+	private final ServerIndex serverIndex = new ServerIndex();
 	private ListServerAdapter serverAdapter;
 	private SharedPreferences prefs;
 
+	/* Refreshes of the server list, batched to at most one per frame */
+	private UiUpdateDispatcher dispatcher;
+	private final int SLOT_SERVERS = 0;
+	private final Runnable refreshServers = new Runnable() {
+		public void run() {
+			serverAdapter.refresh();
+		}
+	};
+
 	/* Menu constants */
 	private final int MENU_EDIT_SERVERS = 1;
 	private final int MENU_REFRESH = 2;
+	private final int MENU_METRICS = 3;
 
 	/* Return codes when calling sub-actions */
 	private final int REQUEST_CODE_EDITSERVERS = 7;
@@ -49,12 +63,21 @@ public class MailinglistModerator extends ListActivity {
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
+		dispatcher = new UiUpdateDispatcher(1);
 		prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
+		ServerEditor.ApplyGlobalPreferences(prefs);
+
+		/* Let the backends keep things like token information between runs */
+		ListServer.setCacheDirectory(getCacheDir());
 
 		servers = new Vector<ListServer>();
 		LoadServers();
 
-		serverAdapter = new ListServerAdapter(this, R.layout.main_item, servers);
+		/* Make sure the background checks are running if enabled */
+		SyncService.schedule(this);
+
+		serverAdapter = new ListServerAdapter(this, R.layout.main_item,
+				serverIndex);
 		setListAdapter(serverAdapter);
 
 		ListView lv = getListView();
@@ -87,7 +110,7 @@ public class MailinglistModerator extends ListActivity {
 		});
 
 		/* Populate list of unmoderated messages in the background */
-		populateServers();
+		loadAndPopulateServers();
 	}
 
 	/**
@@ -106,10 +129,9 @@ public class MailinglistModerator extends ListActivity {
 			// servers.
 			if (entry.getKey().endsWith("_listname")) {
 				try {
-					servers
-							.add(ListServer.CreateFromPreference(prefs, entry
-									.getKey().substring(0,
-											entry.getKey().length() - 9)));
+					ListServer s = ServerEditor.CreateFromPreference(prefs, entry
+							.getKey().substring(0, entry.getKey().length() - 9));
+					servers.add(s);
 				} catch (Exception ex) {
 					final String msg = ex.toString();
 					/* FIXME: replace with alertbox! */
@@ -123,25 +145,34 @@ public class MailinglistModerator extends ListActivity {
 			}
 
 		}
+		serverIndex.setServers(servers);
 	}
 
 	/**
 	 * Notify that the list of servers has changed, and do so on the UI thread
-	 * to make it safe for calling from anywhere.
+	 * to make it safe for calling from anywhere. Any number of notifications
+	 * within a frame cause a single refresh of the list.
 	 */
 	public void notifyServersChanged() {
-		runOnUiThread(new Runnable() {
-			public void run() {
-				serverAdapter.notifyDataSetChanged();
-			}
-		});
+		dispatcher.post(SLOT_SERVERS, refreshServers);
+	}
+
+	/**
+	 * Notify that one server has changed, moving it to its new place in the
+	 * list. Safe to call from any thread.
+	 */
+	public void notifyServerChanged(ListServer s) {
+		serverIndex.update(s);
+		notifyServersChanged();
 	}
 
 	/**
 	 * Populate all our servers with information about unmoderated messages, by
 	 * connecting to the server and enumerating.
 	 * 
-	 * All checking will be run in a background thread.
+	 * Each server is handed to the shared FetchScheduler, which runs them in
+	 * the background on a bounded number of threads and limits how many run
+	 * against the same host at once.
 	 */
 	private void populateServers() {
 		/*
@@ -150,88 +181,94 @@ public class MailinglistModerator extends ListActivity {
 		 */
 		notifyServersChanged();
 
-		Runnable r = new Runnable() {
+		for (int i = 0; i < servers.size(); i++)
+			populateServer(servers.get(i));
+	}
+
+	/**
+	 * Show what was in the queues last time, and then populate them.
+	 * 
+	 * The snapshots are read from disk, and may be large, so they are loaded
+	 * on a thread of their own rather than before the first frame. Each list
+	 * is handed to the FetchScheduler once its snapshot has been loaded, so
+	 * the snapshot is in place before the refresh starts.
+	 */
+	private void loadAndPopulateServers() {
+		notifyServersChanged();
+
+		final Vector<ListServer> toload = new Vector<ListServer>(servers);
+		new Thread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < toload.size(); i++) {
+					ListServer s = toload.get(i);
+					if (s.LoadSnapshot())
+						notifyServerChanged(s);
+					populateServer(s);
+				}
+			}
+		}, "SnapshotLoader").start();
+	}
+
+	/**
+	 * Hand one server to the FetchScheduler to be populated. Safe to call
+	 * from any thread.
+	 */
+	private void populateServer(final ListServer s) {
+		FetchScheduler.getInstance().submit(s.getHost(), new Runnable() {
 			public void run() {
-				Vector<Thread> threads = new Vector<Thread>();
-				
-				for (int i = 0; i < servers.size(); i++) {
-					final ListServer s = servers.get(i);
-					Thread t = new Thread(new Runnable() {
+				boolean wasCurrent = s.isPopulated() && !s.isStale();
+				QueueDelta delta = null;
+				try {
+					delta = s.Populate();
+				} catch (Exception e) {
+					final String msg = String.format("%s", e);
+					runOnUiThread(new Runnable() {
 						public void run() {
-							// TODO Auto-generated method stub
-							try {
-								s.Populate();
-							} catch (Exception e) {
-								final String msg = String.format("%s", e);
-								runOnUiThread(new Runnable() {
-									public void run() {
-										// FIXME: find better way to report errors
-										Toast.makeText(getApplicationContext(), msg,
-												Toast.LENGTH_SHORT).show();
-									}
-								});
-							}
-
-							/*
-							 * Since servers are sorted by number of messages, re-sort
-							 * the list when it has updated.
-							 * 
-							 * We run this once in each loop so that servers with
-							 * messages to moderate on will "bubble up" to the top as we
-							 * run.
-							 */
-							sortServers();
+							// FIXME: find better way to report errors
+							Toast.makeText(getApplicationContext(), msg,
+									Toast.LENGTH_SHORT).show();
 						}
 					});
-					threads.add(t);
-					t.start();
 				}
 
 				/*
-				 * Now wait until all threads are done, but join()ing on them
+				 * Nothing to redraw if the queue was already shown and
+				 * didn't change.
 				 */
-				for (int i = 0; i < threads.size(); i++) {
-					try {
-						threads.get(i).join();
-					} catch (InterruptedException e) {
-					}
-				}
-			}
-		};
-		Thread t = new Thread(r, "ServerPopulatingThread");
-		t.start();
-	}
+				if (wasCurrent && delta != null && delta.isEmpty())
+					return;
 
-	private void sortServers() {
-		Collections.sort(servers, new Comparator<ListServer>() {
-			public int compare(ListServer server1,
-					ListServer server2) {
-				if (!server1.isPopulated()) {
-					if (!server2.isPopulated()) {
-						// Neither server is populated, sort by name
-						return server1.getName().compareTo(server2.getName());
-					}
-					// server1 is not populated, server2 is ==> server2 is bigger
-					return 1;
-				}
-				else if (!server2.isPopulated()) {
-					// server2 is not populated, server1 is ==> server1 is bigger.
-					return -1;
-				}
-				// Both servers are populated
-				if (server2.count() == server1.count()) {
-					// Count is identical, so compare by name
-					return server1.getName().compareTo(server2.getName());
-				}
-				// Both servers have valid values, and they are not the same,
-				// so return the comparison of them.
-				return server2.count() - server1.count();
-				}
+				/*
+				 * Since servers are sorted by number of messages, move
+				 * this one to its new place in the list.
+				 * 
+				 * We run this once for each server so that servers with
+				 * messages to moderate on will "bubble up" to the top as we
+				 * run.
+				 */
+				notifyServerChanged(s);
+			}
 		});
+	}
 
+	/**
+	 * The background service may have refreshed the lists while we were
+	 * not showing, and the servers may have been edited, so update the list
+	 * when we come back.
+	 */
+	@Override
+	protected void onResume() {
+		super.onResume();
+		serverIndex.setServers(servers);
 		notifyServersChanged();
 	}
 
+	@Override
+	protected void onDestroy() {
+		dispatcher.stop();
+		super.onDestroy();
+	}
+
 	/**
 	 * Create the menu for when the Menu button is pressed.
 	 */
@@ -239,6 +276,7 @@ public class MailinglistModerator extends ListActivity {
 	public boolean onCreateOptionsMenu(Menu menu) {
 		menu.add(0, MENU_REFRESH, 0, "Refresh");
 		menu.add(0, MENU_EDIT_SERVERS, 1, "Servers...");
+		menu.add(0, MENU_METRICS, 2, "Metrics");
 		return true;
 	}
 
@@ -258,10 +296,17 @@ public class MailinglistModerator extends ListActivity {
 			startActivityForResult(i, REQUEST_CODE_EDITSERVERS);
 			return true;
 		case MENU_REFRESH:
-			/* Refresh the server list */
-			LoadServers();
+			/*
+			 * Refresh the server list. The existing servers are kept, so
+			 * that the refresh is merged into their queues and any
+			 * messages already marked keep their status.
+			 */
 			populateServers();
 			return true;
+		case MENU_METRICS:
+			startActivity(new Intent(getApplicationContext(),
+					MetricsActivity.class));
+			return true;
 		}
 		return false;
 	}
@@ -288,7 +333,7 @@ public class MailinglistModerator extends ListActivity {
 				startActivityForResult(i, REQUEST_CODE_EDITSERVERS);
 			} else {
 				LoadServers();
-				populateServers();
+				loadAndPopulateServers();
 			}
 		}
 	}
@@ -7,6 +7,8 @@
  */
 package net.hagander.mailinglistmoderator;
 
+import net.hagander.mailinglistmoderator.backend.FetchScheduler;
+import net.hagander.mailinglistmoderator.backend.ListServer;
 import net.hagander.mailinglistmoderator.backend.MailMessage;
 import net.hagander.mailinglistmoderator.backend.MailMessage.statuslevel;
 import android.app.Activity;
@@ -23,17 +25,21 @@ import android.widget.TextView;
  */
 public class MessageViewActivity extends Activity {
 	private MailMessage message;
+	private ListServer server;
 
 	// Ugly hack to pass message to the activity when it's started
 	private static MailMessage _passedMessage;
+	private static ListServer _passedServer;
 
-	public static void setMessage(MailMessage message) {
+	public static void setMessage(MailMessage message, ListServer server) {
 		_passedMessage = message;
+		_passedServer = server;
 	}
 
 	public MessageViewActivity() {
 		super();
 		message = _passedMessage;
+		server = _passedServer;
 	}
 
 	/** Called when the activity is first created. */
@@ -44,8 +50,35 @@ public class MessageViewActivity extends Activity {
 		this.setTitle(message.getSubject());
 
 		setContentView(R.layout.mailview);
-		((TextView) findViewById(R.id.TextView_Body)).setText(message
-				.getContent());
+		final TextView body = (TextView) findViewById(R.id.TextView_Body);
+		if (message.isContentLoaded()) {
+			body.setText(message.getContent());
+		} else {
+			/*
+			 * The contents weren't fetched with the queue, so go get them
+			 * in the background, on the shared fetch workers like any other
+			 * request to the server.
+			 */
+			body.setText("Loading message...");
+			FetchScheduler.getInstance().submit(server.getHost(), new Runnable() {
+				public void run() {
+					String text;
+					try {
+						server.LoadMessageContent(message);
+						text = message.getContent();
+					} catch (Exception e) {
+						text = String.format("Failed to load message: %s", e
+								.getMessage());
+					}
+					final String t = text;
+					runOnUiThread(new Runnable() {
+						public void run() {
+							body.setText(t);
+						}
+					});
+				}
+			});
+		}
 		((TextView) findViewById(R.id.TextView_Sender)).setText(
 				String.format("From: %s\n", message.getSender()));
 		((Button) findViewById(R.id.Button_Accept)).setOnClickListener(new OnClickListener(){
@@ -0,0 +1,220 @@
+/*
+ * MetricsActivity.java - This class holds the activity showing timing measurements for all lists
+ * 
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ * 
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Locale;
+import java.util.Vector;
+
+import net.hagander.mailinglistmoderator.backend.ExchangeArchive;
+import net.hagander.mailinglistmoderator.backend.HostConnectionPool;
+import net.hagander.mailinglistmoderator.backend.ListMetrics;
+import net.hagander.mailinglistmoderator.backend.ListServer;
+import net.hagander.mailinglistmoderator.glue.UiUpdateDispatcher;
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.EditText;
+import android.widget.TextView;
+
+/**
+ * 
+ * @author Magnus Hagander <magnus@hagander.net>
+ * 
+ *         Shows where the time goes when refreshing each list, and lets the
+ *         measurements be exported as JSON. All requests can also be
+ *         recorded to a file, to be replayed on a computer later.
+ */
+public class MetricsActivity extends Activity {
+	private final int MENU_REFRESH = 1;
+	private final int MENU_EXPORT = 2;
+	private final int MENU_RECORD = 3;
+
+	/* Where requests are recorded, on the sdcard like the exports */
+	private static final String RECORDING_FILE = "/sdcard/mailinglistmoderator-requests.bin";
+
+	private TextView text;
+
+	/** Called when the activity is first created. */
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		this.setTitle("Metrics");
+		setContentView(R.layout.metrics);
+		text = (TextView) findViewById(R.id.TextView_Metrics);
+		text.setText(getSummary());
+	}
+
+	/**
+	 * Get a readable summary of all measurements, with the median, 90th
+	 * percentile and maximum of each.
+	 */
+	private String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Times in ms, as median/90%/max\n\n");
+
+		Vector<ListServer> servers = MailinglistModerator.servers;
+		for (int i = 0; i < servers.size(); i++) {
+			ListServer s = servers.get(i);
+			ListMetrics m = s.getMetrics();
+			sb.append(String.format("%s (%d requests)\n", s.getName(), m
+					.getTimeToFirstByte().getCount()));
+			sb.append(String.format("  DNS       %s\n", m.getDns()));
+			sb.append(String.format("  Connect   %s\n", m.getConnect()));
+			sb.append(String.format("  TLS       %s\n", m.getTls()));
+			sb.append(String.format("  1st byte  %s\n", m
+					.getTimeToFirstByte()));
+			sb.append(String.format("  Download  %s\n", m.getDownload()));
+			sb.append(String.format("  Bytes     %s\n", m.getBytes()));
+			sb.append(String.format("  Parse     %s\n", m.getParse()));
+			sb.append(String.format("  Messages  %s\n\n", m.getMessages()));
+		}
+
+		Vector<HostConnectionPool> pools = HostConnectionPool.getAllPools();
+		for (int i = 0; i < pools.size(); i++)
+			sb.append(String.format("%s\n\n", pools.get(i)));
+
+		sb.append(String.format("%d refreshes, %.0f%% unchanged\n", ListServer
+				.getRefreshCount(), ListServer.getUnchangedRate() * 100));
+		sb.append(String.format(
+				"%d UI updates in %d redraws, %d merged, %d dropped\n",
+				UiUpdateDispatcher.getPostedCount(), UiUpdateDispatcher
+						.getFlushCount(), UiUpdateDispatcher.getMergedCount(),
+				UiUpdateDispatcher.getDroppedCount()));
+		return sb.toString();
+	}
+
+	/**
+	 * Get all measurements as a JSON document.
+	 */
+	private String getJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n\"lists\": [\n");
+		Vector<ListServer> servers = MailinglistModerator.servers;
+		for (int i = 0; i < servers.size(); i++) {
+			ListServer s = servers.get(i);
+			if (i > 0)
+				sb.append(",\n");
+			sb.append(String.format("{\"name\": %s, \"host\": %s, \"metrics\": %s}",
+					ListMetrics.jsonString(s.getName()), ListMetrics
+							.jsonString(s.getHost()), s.getMetrics().toJson()));
+		}
+		sb.append("\n],\n\"hosts\": [\n");
+		Vector<HostConnectionPool> pools = HostConnectionPool.getAllPools();
+		for (int i = 0; i < pools.size(); i++) {
+			HostConnectionPool p = pools.get(i);
+			if (i > 0)
+				sb.append(",\n");
+			sb.append(String.format(
+					"{\"host\": %s, \"requests\": %d, \"wire_bytes\": %d, \"content_bytes\": %d}",
+					ListMetrics.jsonString(p.getKey()), p.getRequestCount(), p
+							.getWireBytes(), p.getContentBytes()));
+		}
+		sb.append(String.format(Locale.US,
+				"\n],\n\"refreshes\": %d,\n\"unchanged_refreshes\": %d,\n\"ui_updates\": {\"posted\": %d, \"flushes\": %d, \"merged\": %d, \"dropped\": %d}\n}\n",
+				ListServer.getRefreshCount(), ListServer.getUnchangedCount(),
+				UiUpdateDispatcher.getPostedCount(), UiUpdateDispatcher
+						.getFlushCount(), UiUpdateDispatcher.getMergedCount(),
+				UiUpdateDispatcher.getDroppedCount()));
+		return sb.toString();
+	}
+
+	/**
+	 * Create the menu for when the Menu button is pressed.
+	 */
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		menu.add(0, MENU_REFRESH, 0, "Refresh");
+		menu.add(0, MENU_EXPORT, 1, "Export...");
+		menu.add(0, MENU_RECORD, 2, "Record requests");
+		return true;
+	}
+
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		menu.findItem(MENU_RECORD).setTitle(
+				(ListServer.getExchangeArchive() != null) ? "Stop recording"
+						: "Record requests");
+		return true;
+	}
+
+	/**
+	 * Handle selections in the menu.
+	 */
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+		case MENU_REFRESH:
+			text.setText(getSummary());
+			return true;
+		case MENU_EXPORT:
+			ExportMetrics();
+			return true;
+		case MENU_RECORD:
+			ToggleRecording();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Start recording all requests to a file, or stop if we already are.
+	 * Passwords are not included in the recording.
+	 */
+	private void ToggleRecording() {
+		ExchangeArchive archive = ListServer.getExchangeArchive();
+		if (archive != null) {
+			ListServer.setExchangeArchive(null);
+			archive.close();
+			new AlertDialog.Builder(this).setTitle("Recording stopped")
+					.setMessage(String.format("Requests were saved to %s",
+							RECORDING_FILE)).show();
+			return;
+		}
+		try {
+			ListServer.setExchangeArchive(ExchangeArchive.record(new File(
+					RECORDING_FILE)));
+		} catch (IOException ex) {
+			new AlertDialog.Builder(this).setTitle("Failed to write file")
+					.setMessage(ex.getMessage()).show();
+		}
+	}
+
+	private void ExportMetrics() {
+		final EditText edit = new EditText(this);
+		edit.setText("mailinglistmetrics.json");
+		new AlertDialog.Builder(this).setTitle("Export metrics").setMessage(
+				"Enter filename").setView(edit).setPositiveButton(
+				"Export", new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						String filename = edit.getText().toString();
+						if (filename.length() < 2)
+							return;
+
+						/* We're going to stick this in the default path always */
+						filename = "/sdcard/" + filename;
+						try {
+							OutputStreamWriter w = new OutputStreamWriter(
+									new FileOutputStream(filename), "utf-8");
+							w.write(getJson());
+							w.close();
+						}
+						catch (IOException ex) {
+							new AlertDialog.Builder(MetricsActivity.this).setTitle("Failed to write file").setMessage(ex.getMessage()).show();
+						}
+					}
+				}).show();
+	}
+}
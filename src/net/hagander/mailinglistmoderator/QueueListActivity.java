@@ -9,9 +9,11 @@ package net.hagander.mailinglistmoderator;
 
 import net.hagander.mailinglistmoderator.backend.ListServer;
 import net.hagander.mailinglistmoderator.backend.MailMessage;
+import net.hagander.mailinglistmoderator.backend.QueueDelta;
 import net.hagander.mailinglistmoderator.backend.ListServer.ListServerStatusCallbacks;
 import net.hagander.mailinglistmoderator.backend.MailMessage.statuslevel;
 import net.hagander.mailinglistmoderator.glue.MailMessageAdapter;
+import net.hagander.mailinglistmoderator.glue.UiUpdateDispatcher;
 import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.app.ProgressDialog;
@@ -40,6 +42,21 @@ public class QueueListActivity extends ListActivity implements
 	private MailinglistModerator parent;
 	private MailMessageAdapter messageAdapter;
 
+	/*
+	 * Updates from the thread applying the changes, batched to at most one
+	 * refresh per frame. The max of the progress bar goes before the value.
+	 */
+	private UiUpdateDispatcher dispatcher;
+	private final int SLOT_MAX = 0;
+	private final int SLOT_PROGRESS = 1;
+	private final int SLOT_STATUS = 2;
+	private final int SLOT_MESSAGES = 3;
+	private volatile int progressMax;
+	/* Only goes up during a batch, changed under progressLock */
+	private volatile int progressValue;
+	private final Object progressLock = new Object();
+	private volatile String statusMessage;
+
 	/* Menu constants */
 	private final int MENU_ACCEPT = 1;
 	private final int MENU_REJECT = 2;
@@ -66,6 +83,7 @@ public class QueueListActivity extends ListActivity implements
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
+		dispatcher = new UiUpdateDispatcher(4);
 		this.setTitle(String
 				.format("Moderation queue for %s", server.getName()));
 
@@ -75,6 +93,9 @@ public class QueueListActivity extends ListActivity implements
 
 		ListView lv = getListView();
 
+		/* A queue can be very long during a spam wave */
+		lv.setFastScrollEnabled(true);
+
 		/*
 		 * Handle clicks on an individual item in the queue by starting the
 		 * MessageViewActivity to show the contents of the message.
@@ -84,7 +105,7 @@ public class QueueListActivity extends ListActivity implements
 					int position, long id) {
 				MailMessage m = messageAdapter.getItem(position);
 
-				MessageViewActivity.setMessage(m);
+				MessageViewActivity.setMessage(m, server);
 				startActivityForResult(new Intent(getApplicationContext(),
 						MessageViewActivity.class), 1);
 				/*
@@ -148,7 +169,7 @@ public class QueueListActivity extends ListActivity implements
 					if (server.applyChanges(activity)) {
 						// Reload the moderation queue (for this server only)
 						SetStatusMessage("Reloading moderation queue...");
-						server.Populate();
+						QueueDelta delta = server.Populate();
 
 						/* Move up to 100%, for a microsecond or two */
 						if (server.doesIndividualModeration()) {
@@ -162,7 +183,7 @@ public class QueueListActivity extends ListActivity implements
 						 * Since the count of messages may have changed, we need to
 						 * tell the parent view as well.
 						 */
-						parent.notifyServersChanged();
+						parent.notifyServerChanged(server);
 
 						/*
 						 * Did we moderate all the messages?
@@ -171,13 +192,9 @@ public class QueueListActivity extends ListActivity implements
 							// Drop out to main screen if there are no more
 							// messages
 							finish();
-						else {
-							// Otherwise, refresh our list
-							runOnUiThread(new Runnable() {
-								public void run() {
-									messageAdapter.notifyDataSetChanged();
-								}
-							});
+						else if (delta == null || !delta.isEmpty()) {
+							// Otherwise, refresh our list if anything changed
+							dispatcher.post(SLOT_MESSAGES, refreshMessages);
 						}
 					} else {
 						// Changes failed, error message already shown, just get
@@ -189,31 +206,56 @@ public class QueueListActivity extends ListActivity implements
 		}
 	}
 
+	private final Runnable refreshMessages = new Runnable() {
+		public void run() {
+			messageAdapter.refresh(server.getMessages());
+		}
+	};
+
+	private final Runnable updateMax = new Runnable() {
+		public void run() {
+			progressDialog.setMax(progressMax);
+		}
+	};
+
+	private final Runnable updateProgress = new Runnable() {
+		public void run() {
+			progressDialog.setProgress(progressValue);
+		}
+	};
+
+	private final Runnable updateStatus = new Runnable() {
+		public void run() {
+			progressDialog.setMessage(statusMessage);
+		}
+	};
+
 	/*
 	 * Methods to implement ListServerStatusCallback
+	 * 
+	 * Progress is only shown as of the latest call each frame, errors are
+	 * always shown. The progress shown is the highest value reported, so a
+	 * late call from one thread can't move the bar backwards.
 	 */
-	public void SetProgressbarValue(final int value) {
-		runOnUiThread(new Runnable() {
-			public void run() {
-				progressDialog.setProgress(value);
-			}
-		});
+	public void SetProgressbarValue(int value) {
+		synchronized (progressLock) {
+			progressValue = Math.max(progressValue, value);
+		}
+		dispatcher.post(SLOT_PROGRESS, updateProgress);
 	}
 
-	public void SetMessageCount(final int size) {
-		runOnUiThread(new Runnable() {
-			public void run() {
-				progressDialog.setMax(size+1);
-			}
-		});
+	public void SetMessageCount(int size) {
+		/* A new batch, so start over */
+		synchronized (progressLock) {
+			progressValue = 0;
+		}
+		progressMax = size + 1;
+		dispatcher.post(SLOT_MAX, updateMax);
 	}
 
-	public void SetStatusMessage(final String msg) {
-		runOnUiThread(new Runnable() {
-			public void run() {
-				progressDialog.setMessage(msg);
-			}
-		});
+	public void SetStatusMessage(String msg) {
+		statusMessage = msg;
+		dispatcher.post(SLOT_STATUS, updateStatus);
 	}
 
 	public void ShowError(final String msg) {
@@ -298,6 +340,12 @@ public class QueueListActivity extends ListActivity implements
 
 	}
 
+	@Override
+	protected void onDestroy() {
+		dispatcher.stop();
+		super.onDestroy();
+	}
+
 	/**
 	 * Refresh when child activity returns
 	 */
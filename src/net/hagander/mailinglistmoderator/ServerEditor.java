@@ -20,13 +20,16 @@ import org.w3c.dom.NodeList;
 import org.xmlpull.v1.XmlSerializer;
 
 import net.hagander.mailinglistmoderator.backend.ListServer;
+import net.hagander.mailinglistmoderator.backend.providers.Majordomo2;
 import net.hagander.mailinglistmoderator.preferences.SSLCertDialogPreference;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
+import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
@@ -49,6 +52,8 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
  * 
  */
 public class ServerEditor extends PreferenceActivity implements OnSharedPreferenceChangeListener {
+	public static final String PREF_APPLY_PARALLELISM = "apply_parallelism";
+
 	private SharedPreferences prefs;
 
 	/* Menu constants */
@@ -69,6 +74,55 @@ public class ServerEditor extends PreferenceActivity implements OnSharedPreferen
         prefs.registerOnSharedPreferenceChangeListener(this);
 	}
 
+	/**
+	 * Apply the settings that aren't specific to one server.
+	 */
+	public static void ApplyGlobalPreferences(SharedPreferences pref) {
+		try {
+			Majordomo2.setApplyParallelism(Integer.parseInt(pref.getString(
+					PREF_APPLY_PARALLELISM, Integer
+							.toString(Majordomo2.DEFAULT_APPLY_PARALLELISM))));
+		} catch (NumberFormatException e) {
+			Majordomo2.setApplyParallelism(Majordomo2.DEFAULT_APPLY_PARALLELISM);
+		}
+	}
+
+	/**
+	 * Create a ListServer instance by reading the application preferences for
+	 * it.
+	 * 
+	 * @param pref
+	 *            Instance of SharedPreferences to use.
+	 * @param name
+	 *            Name of the list.
+	 * @return A ListServer instance representing this server.
+	 */
+	public static ListServer CreateFromPreference(SharedPreferences pref,
+			String name) {
+		String baseurl = pref.getString(name + "_baseurl", "");
+		String password = pref.getString(name + "_password", "");
+		String override_certname = pref.getString(name+"_overridecertname", "");
+		String whitelisted_cert = pref.getString(name+"_whitelistedcert", "");
+
+		ListServer s = ListServer.Create(name, baseurl, password, override_certname, whitelisted_cert);
+		s.setLazyContent(pref.getBoolean(name + "_lazybodies", false));
+		return s;
+	}
+
+	private static void writeXmlElement(XmlSerializer xml, ListServer s) throws IOException {
+		xml.startTag(null, "list");
+		xml.attribute(null, "name", s.getName());
+		xml.attribute(null, "url", s.getRootUrl());
+		xml.attribute(null, "password", s.getPassword());
+		if (s.getOverrideCertname() != null && !s.getOverrideCertname().equals(""))
+			xml.attribute(null, "overridecertname", s.getOverrideCertname());
+		if (s.getWhitelistedCert() != null && !s.getWhitelistedCert().equals(""))
+			xml.attribute(null, "whitelistedcert", s.getWhitelistedCert());
+		if (s.getLazyContent())
+			xml.attribute(null, "lazybodies", "1");
+		xml.endTag(null, "list");
+	}
+
 	private final int MENU_COPY_SERVER = 1;
 	private final int MENU_DELETE_SERVER = 2;
 	@Override
@@ -92,6 +146,7 @@ public class ServerEditor extends PreferenceActivity implements OnSharedPreferen
 			editor.remove(name + "_password");
 			editor.remove(name + "_overridecertname");
 			editor.remove(name + "_whitelistedcert");
+			editor.remove(name + "_lazybodies");
 			editor.commit();
 
 			for (ListServer s: MailinglistModerator.servers){
@@ -119,9 +174,10 @@ public class ServerEditor extends PreferenceActivity implements OnSharedPreferen
 					editor.putString(newname + "_password", prefs.getString(name + "_password", ""));
 					editor.putString(newname + "_overridecertname", prefs.getString(name + "_overridecertname", ""));
 					editor.putString(newname + "_whitelistedcert", prefs.getString(name + "_whitelistedcert", ""));
+					editor.putBoolean(newname + "_lazybodies", prefs.getBoolean(name + "_lazybodies", false));
 					editor.commit();
 
-					MailinglistModerator.servers.add(ListServer.CreateFromPreference(prefs, newname));
+					MailinglistModerator.servers.add(CreateFromPreference(prefs, newname));
 					setPreferenceScreen(getRootPreferenceScreen());
 				}
 			}).show();
@@ -139,12 +195,38 @@ public class ServerEditor extends PreferenceActivity implements OnSharedPreferen
 				this);
 
 		root.setTitle("Servers");
+
+		CheckBoxPreference e_sync = new CheckBoxPreference(this);
+		e_sync.setKey(SyncService.PREF_ENABLED);
+		e_sync.setTitle("Check in background");
+		e_sync.setSummary("Check busy lists every 15 minutes and quiet ones less often, and notify when messages are waiting");
+		root.addPreference(e_sync);
+
+		ListPreference e_parallel = new ListPreference(this);
+		e_parallel.setKey(PREF_APPLY_PARALLELISM);
+		e_parallel.setTitle("Parallel moderation requests");
+		e_parallel.setDialogTitle("Parallel moderation requests");
+		e_parallel.setEntries(new String[] { "1", "2", "4", "8" });
+		e_parallel.setEntryValues(new String[] { "1", "2", "4", "8" });
+		e_parallel.setDefaultValue(Integer
+				.toString(Majordomo2.DEFAULT_APPLY_PARALLELISM));
+		e_parallel.setSummary(getParallelismSummary(prefs.getString(
+				PREF_APPLY_PARALLELISM, Integer
+						.toString(Majordomo2.DEFAULT_APPLY_PARALLELISM))));
+		root.addPreference(e_parallel);
+
 		for (int i = 0; i < MailinglistModerator.servers.size(); i++)
 			root.addPreference(getOneServerSet(MailinglistModerator.servers
 					.get(i).getName()));
 		return root;
 	}
 
+	private static String getParallelismSummary(String value) {
+		return String.format(
+				"Send %s moderation requests at a time when applying changes (majordomo2 only)",
+				value);
+	}
+
 	/**
 	 * Return a preference screen for one individual server.
 	 */
@@ -190,6 +272,13 @@ public class ServerEditor extends PreferenceActivity implements OnSharedPreferen
 		e_whitelistcert.setSummary(prefs.getString(name+"_whitelistedcert",""));
 		screen.addPreference(e_whitelistcert);
 
+		/* Create checkbox for loading message bodies on demand */
+		CheckBoxPreference e_lazybodies = new CheckBoxPreference(this);
+		e_lazybodies.setKey(name + "_lazybodies");
+		e_lazybodies.setTitle("Load messages on demand");
+		e_lazybodies.setSummary("Only download the contents of a message when it's opened (mailman only)");
+		screen.addPreference(e_lazybodies);
+
 		return screen;
 	}
 
@@ -226,9 +315,10 @@ public class ServerEditor extends PreferenceActivity implements OnSharedPreferen
 							editor.putString(name + "_password", "");
 							editor.putString(name + "_overridecertname", "");
 							editor.putString(name + "_whitelistedcert", "");
+							editor.putBoolean(name + "_lazybodies", false);
 							editor.commit();
 
-							MailinglistModerator.servers.add(ListServer.CreateFromPreference(prefs, name));
+							MailinglistModerator.servers.add(CreateFromPreference(prefs, name));
 							setPreferenceScreen(getRootPreferenceScreen());
 						}
 					}).show();
@@ -265,7 +355,7 @@ public class ServerEditor extends PreferenceActivity implements OnSharedPreferen
 							xml.startTag(null, "mailinglists");
 							for (int i = 0; i < MailinglistModerator.servers.size(); i++) {
 								ListServer s = MailinglistModerator.servers.get(i);
-								s.writeXmlElement(xml);
+								writeXmlElement(xml, s);
 							}
 							xml.endTag(null,  "mailinglists");
 							xml.endDocument();
@@ -325,6 +415,7 @@ public class ServerEditor extends PreferenceActivity implements OnSharedPreferen
 							String password = node.getAttribute("password");
 							String overridecertname = node.getAttribute("overridecertname");
 							String whitelistedcert = node.getAttribute("whitelistedcert");
+							boolean lazybodies = node.getAttribute("lazybodies").equals("1");
 
 							/* Find out if this node already exists */
 							boolean doesexist = false;
@@ -357,10 +448,11 @@ public class ServerEditor extends PreferenceActivity implements OnSharedPreferen
 							editor.putString(name + "_password", password);
 							editor.putString(name + "_overridecertname", overridecertname);
 							editor.putString(name + "_whitelistedcert", whitelistedcert);
+							editor.putBoolean(name + "_lazybodies", lazybodies);
 							editor.commit();
 
 							if (!doesexist)
-								MailinglistModerator.servers.add(ListServer.CreateFromPreference(prefs, name));
+								MailinglistModerator.servers.add(CreateFromPreference(prefs, name));
 						}
 
 						/* Let the user know what happened */
@@ -390,5 +482,16 @@ public class ServerEditor extends PreferenceActivity implements OnSharedPreferen
 				pref.setSummary(sharedPreferences.getString(key, ""));
 			}
 		}
+		if (key.equals(SyncService.PREF_ENABLED)) {
+			SyncService.schedule(this);
+		}
+		if (key.equals(PREF_APPLY_PARALLELISM)) {
+			ApplyGlobalPreferences(sharedPreferences);
+			Preference pref = findPreference(key);
+			if (pref != null) {
+				pref.setSummary(getParallelismSummary(sharedPreferences
+						.getString(key, "")));
+			}
+		}
 	}
 }
@@ -0,0 +1,313 @@
+/*
+ * SyncService.java - This class holds the service checking the lists in the background.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import net.hagander.mailinglistmoderator.backend.FetchScheduler;
+import net.hagander.mailinglistmoderator.backend.ListServer;
+import net.hagander.mailinglistmoderator.backend.PollScheduler;
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Periodically refreshes all lists in the background, so the counts
+ *         are already up to date when the program is opened, and shows a
+ *         notification when there are messages waiting for moderation.
+ *
+ *         The service is started by an alarm, runs the lists that are due
+ *         through the FetchScheduler like the main activity does, and stops
+ *         itself when they're done. How often each list is due is decided by
+ *         the PollScheduler from how busy the list is. Lists that fail are
+ *         retried less and less often.
+ */
+public class SyncService extends Service {
+	public static final String PREF_ENABLED = "sync_enabled";
+	private static final String PREF_LAST_NOTIFIED = "sync_last_notified";
+
+	/*
+	 * How often to look for lists that are due. Busy lists are checked this
+	 * often, quiet ones down to every MAX_INTERVAL.
+	 */
+	public static final long INTERVAL = 15 * 60 * 1000;
+	public static final long MAX_INTERVAL = 12 * 60 * 60 * 1000;
+	/* Longest time to wait before retrying a list that keeps failing */
+	private static final long MAX_BACKOFF = 8 * 60 * 60 * 1000;
+	/* Notify when at least this many messages are waiting */
+	private static final int NOTIFY_THRESHOLD = 1;
+	private static final int NOTIFICATION_ID = 1;
+
+	/*
+	 * Failure count and time of next attempt, per list. Kept for as long as
+	 * the process lives.
+	 */
+	private static final HashMap<String, Backoff> backoffs = new HashMap<String, Backoff>();
+	private static boolean running = false;
+
+	private static final PollScheduler scheduler = new PollScheduler(
+			INTERVAL, MAX_INTERVAL, PollScheduler.SYSTEM_CLOCK);
+
+	private static class Backoff {
+		int failures = 0;
+		long nextAttempt = 0;
+	}
+
+	/**
+	 * Set up or cancel the alarm starting this service, depending on if
+	 * background checking is enabled.
+	 */
+	public static void schedule(Context context) {
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(context);
+		AlarmManager am = (AlarmManager) context
+				.getSystemService(Context.ALARM_SERVICE);
+		PendingIntent pi = PendingIntent.getService(context, 0, new Intent(
+				context, SyncService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+
+		if (prefs.getBoolean(PREF_ENABLED, false)) {
+			/*
+			 * Don't wake the device up for this, the check will run the next
+			 * time it's awake anyway.
+			 */
+			am.setRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock
+					.elapsedRealtime()
+					+ INTERVAL, INTERVAL, pi);
+		} else {
+			am.cancel(pi);
+			((NotificationManager) context
+					.getSystemService(Context.NOTIFICATION_SERVICE))
+					.cancel(NOTIFICATION_ID);
+		}
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	@Override
+	public void onStart(Intent intent, int startId) {
+		synchronized (backoffs) {
+			if (running)
+				/* Still working on the previous round */
+				return;
+			running = true;
+		}
+
+		/*
+		 * Loading the lists reads their snapshots from disk, so do that and
+		 * everything after it off the main thread.
+		 */
+		new Thread(new Runnable() {
+			public void run() {
+				boolean started = false;
+				try {
+					started = startRound();
+				} finally {
+					/* Don't let a failure stop all future rounds */
+					if (!started)
+						endRound();
+				}
+			}
+		}, "SyncService").start();
+	}
+
+	/**
+	 * Find the lists that are due, and refresh them.
+	 * 
+	 * @return true if the round was handed on, and finish() has been or will
+	 *         be called to end it
+	 */
+	private boolean startRound() {
+		final Vector<ListServer> servers = getServers();
+		final Vector<ListServer> torefresh = new Vector<ListServer>();
+		long now = SystemClock.elapsedRealtime();
+		synchronized (backoffs) {
+			for (int i = 0; i < servers.size(); i++) {
+				ListServer s = servers.get(i);
+				Backoff b = backoffs.get(s.getName());
+				if (b != null && b.nextAttempt > now)
+					continue;
+				if (b == null && !scheduler.isDue(s.getArrivalRate()))
+					/* Quiet list that was checked recently enough */
+					continue;
+				torefresh.add(s);
+			}
+		}
+		if (torefresh.size() == 0) {
+			finish(servers);
+			return true;
+		}
+
+		final int[] remaining = new int[] { torefresh.size() };
+		FetchScheduler fetcher = FetchScheduler.getInstance();
+		for (int i = 0; i < torefresh.size(); i++) {
+			final ListServer s = torefresh.get(i);
+			fetcher.submit(s.getHost(), new Runnable() {
+				public void run() {
+					try {
+						boolean ok;
+						try {
+							ok = (s.Populate() != null);
+						} catch (Exception e) {
+							ok = false;
+						}
+						recordResult(s.getName(), ok);
+					} finally {
+						boolean last;
+						synchronized (remaining) {
+							last = (--remaining[0] == 0);
+						}
+						if (last)
+							finish(servers);
+					}
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Get the lists to refresh. If the main activity has loaded them, use
+	 * the same objects, so it shows the new information right away.
+	 * Otherwise load them from the preferences. Reads files, so not to be
+	 * called on the main thread.
+	 */
+	private Vector<ListServer> getServers() {
+		Vector<ListServer> shared = MailinglistModerator.servers;
+		if (shared != null) {
+			synchronized (shared) {
+				return new Vector<ListServer>(shared);
+			}
+		}
+
+		Vector<ListServer> servers = new Vector<ListServer>();
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(this);
+		for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+			if (entry.getKey().endsWith("_listname")) {
+				try {
+					ListServer s = ServerEditor.CreateFromPreference(prefs, entry
+							.getKey().substring(0, entry.getKey().length() - 9));
+					s.LoadSnapshot();
+					servers.add(s);
+				} catch (Exception ex) {
+					Log.w("SyncService", String.format(
+							"Failed to load list %s: %s", entry.getKey(), ex
+									.toString()));
+				}
+			}
+		}
+		return servers;
+	}
+
+	/**
+	 * Record if refreshing a list worked, and if not, when to try again.
+	 */
+	private static void recordResult(String name, boolean ok) {
+		synchronized (backoffs) {
+			if (ok) {
+				backoffs.remove(name);
+				return;
+			}
+			Backoff b = backoffs.get(name);
+			if (b == null) {
+				b = new Backoff();
+				backoffs.put(name, b);
+			}
+			b.failures++;
+			/*
+			 * Skip 1, 3, 7... intervals, up to the maximum. Aim half an
+			 * interval early, so an alarm firing a bit early still counts.
+			 */
+			long delay = INTERVAL << Math.min(b.failures, 10);
+			b.nextAttempt = SystemClock.elapsedRealtime()
+					+ Math.min(delay, MAX_BACKOFF) - INTERVAL / 2;
+		}
+	}
+
+	/**
+	 * Show or remove the notification for all lists, and stop the service.
+	 */
+	private void finish(Vector<ListServer> servers) {
+		try {
+			notifyWaiting(servers);
+		} finally {
+			endRound();
+		}
+	}
+
+	/**
+	 * Mark the round as done, so the next alarm starts a new one, and stop
+	 * the service.
+	 */
+	private void endRound() {
+		synchronized (backoffs) {
+			running = false;
+		}
+		stopSelf();
+	}
+
+	/**
+	 * Show or remove the notification for all lists.
+	 */
+	private void notifyWaiting(Vector<ListServer> servers) {
+		int total = 0;
+		int lists = 0;
+		for (int i = 0; i < servers.size(); i++) {
+			ListServer s = servers.get(i);
+			if (s.isPopulated() && !s.isExceptioned() && s.count() > 0) {
+				total += s.count();
+				lists++;
+			}
+		}
+
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(this);
+		NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		int lastNotified = prefs.getInt(PREF_LAST_NOTIFIED, 0);
+		if (total < NOTIFY_THRESHOLD) {
+			nm.cancel(NOTIFICATION_ID);
+			prefs.edit().putInt(PREF_LAST_NOTIFIED, 0).commit();
+		} else if (total > lastNotified) {
+			/*
+			 * Only notify when the count goes up, so the same messages don't
+			 * show up again every time we check.
+			 */
+			String text = String.format("%d messages waiting on %d %s",
+					total, lists, lists == 1 ? "list" : "lists");
+			Notification n = new Notification(R.drawable.icon, text, System
+					.currentTimeMillis());
+			n.number = total;
+			n.flags |= Notification.FLAG_AUTO_CANCEL;
+			n.setLatestEventInfo(this, "Mailinglist moderation", text,
+					PendingIntent.getActivity(this, 0, new Intent(this,
+							MailinglistModerator.class), 0));
+			nm.notify(NOTIFICATION_ID, n);
+			prefs.edit().putInt(PREF_LAST_NOTIFIED, total).commit();
+		} else if (total < lastNotified) {
+			/* Some were moderated, so notify again if it goes back up */
+			prefs.edit().putInt(PREF_LAST_NOTIFIED, total).commit();
+		}
+	}
+}
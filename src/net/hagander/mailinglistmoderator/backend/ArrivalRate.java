@@ -0,0 +1,85 @@
+/*
+ * ArrivalRate.java - This class holds the rate new messages show up at in a moderation queue.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Keeps a moving average of how many new messages show up in a queue
+ *         per hour, updated every time the queue is refreshed. Older
+ *         refreshes count less and less, with their weight halving about
+ *         every day, so a list that suddenly gets busy is picked up quickly.
+ *
+ *         All times are passed in by the caller, so the rate can be fed
+ *         from a simulated clock as well as a real one.
+ */
+public class ArrivalRate {
+	/* Time constant of the moving average */
+	private static final double TAU = 36 * 60 * 60 * 1000.0;
+	private static final double HOUR = 60 * 60 * 1000.0;
+
+	/* Time of the last refresh, or -1 if there hasn't been one */
+	private long lastUpdate = -1;
+	/* Messages per hour, or -1 if not known yet */
+	private double rate = -1;
+
+	/**
+	 * Record the result of a refresh.
+	 *
+	 * @param now
+	 *            Time of the refresh, in milliseconds
+	 * @param arrived
+	 *            Number of messages that were new since the last refresh
+	 */
+	public synchronized void record(long now, int arrived) {
+		if (lastUpdate == -1 || now <= lastUpdate) {
+			/*
+			 * The first refresh only tells us what was already waiting, not
+			 * how fast it got there.
+			 */
+			lastUpdate = Math.max(lastUpdate, now);
+			return;
+		}
+		double elapsed = now - lastUpdate;
+		double observed = arrived * HOUR / elapsed;
+		if (rate < 0) {
+			rate = observed;
+		} else {
+			double weight = 1 - Math.exp(-elapsed / TAU);
+			rate = weight * observed + (1 - weight) * rate;
+		}
+		lastUpdate = now;
+	}
+
+	/**
+	 * Restore a rate saved earlier with getLastUpdate() and getRate().
+	 */
+	public synchronized void restore(long lastUpdate, double rate) {
+		this.lastUpdate = lastUpdate;
+		this.rate = rate;
+	}
+
+	/**
+	 * Get the time of the last refresh.
+	 *
+	 * @return the time in milliseconds, or -1 if never refreshed
+	 */
+	public synchronized long getLastUpdate() {
+		return lastUpdate;
+	}
+
+	/**
+	 * Get the average number of new messages per hour.
+	 *
+	 * @return the rate, or -1 if there haven't been two refreshes yet
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+}
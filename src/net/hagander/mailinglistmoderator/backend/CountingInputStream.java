@@ -0,0 +1,66 @@
+/*
+ * CountingInputStream.java - This class holds a stream wrapper counting the bytes read through it.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Counts the bytes read through a stream, so we can tell how much
+ *         was transferred before and after decompression.
+ */
+class CountingInputStream extends FilterInputStream {
+	private long count = 0;
+
+	public CountingInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1)
+			count++;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n > 0)
+			count += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		count += skipped;
+		return skipped;
+	}
+
+	/*
+	 * Marking would make the count wrong when reset, and nothing we read
+	 * from needs it.
+	 */
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Get the number of bytes read so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,484 @@
+/*
+ * ExchangeArchive.java - This class holds recorded requests and responses for replaying later.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Records every request made by the lists, with the response and how
+ *         long it took, so the same session can be replayed later without
+ *         any network access. Replaying can either wait as long as the
+ *         original requests did, or answer as fast as possible.
+ *
+ *         Passwords are never written to the archive. Password parameters
+ *         in URLs and forms are replaced, both when recording and when
+ *         looking up a request to replay, so the lookup doesn't depend on
+ *         the password either.
+ *
+ *         The archive is a sequence of records, each compressed on its own
+ *         and preceded by its compressed length, so a recording that was
+ *         never closed (because the program was killed) can still be read
+ *         up to the last complete record.
+ */
+public class ExchangeArchive {
+	private static final Logger log = Logger.getLogger("ExchangeArchive");
+
+	private static final int MAGIC = 0x4d4c4d58;
+	private static final int VERSION = 1;
+
+	private static final byte RECORD_LIST = 1;
+	private static final byte RECORD_EXCHANGE = 2;
+
+	/* Written instead of passwords */
+	public static final String REDACTED = "********";
+	private static final Pattern passwordParamPattern = Pattern
+			.compile("(^|[?&])(adminpw|passw|password)=[^&]*");
+
+	/**
+	 * A recorded request and its response.
+	 */
+	public static class Exchange {
+		private final String url;
+		private final String form;
+		/* Time from starting the request until the response started */
+		private final long waitNanos;
+		/* Time spent reading the response */
+		private final long readNanos;
+		/* Content-Type of the response, or the error message if it failed */
+		private final String contentType;
+		private final String error;
+		private final byte[] content;
+
+		private Exchange(String url, String form, long waitNanos,
+				long readNanos, String contentType, String error,
+				byte[] content) {
+			this.url = url;
+			this.form = form;
+			this.waitNanos = waitNanos;
+			this.readNanos = readNanos;
+			this.contentType = contentType;
+			this.error = error;
+			this.content = content;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * Get the error the request failed with, or null if it succeeded.
+		 */
+		public String getError() {
+			return error;
+		}
+
+		public int getContentLength() {
+			return content.length;
+		}
+	}
+
+	/**
+	 * An exchange being recorded, which collects the response as it is read.
+	 */
+	public class Recording {
+		private final String url;
+		private final String form;
+		private final String password;
+		private final long start = System.nanoTime();
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+		private Recording(String url, String form, String password) {
+			this.url = redact(url, password);
+			this.form = redact(form, password);
+			this.password = password;
+		}
+
+		/**
+		 * Wrap the (decompressed) response stream, so everything read from
+		 * it is recorded.
+		 */
+		public InputStream wrap(InputStream in) {
+			return new FilterInputStream(in) {
+				@Override
+				public int read() throws IOException {
+					int c = super.read();
+					if (c != -1)
+						content.write(c);
+					return c;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0)
+						content.write(b, off, n);
+					return n;
+				}
+			};
+		}
+
+		/**
+		 * Record the response once it has been read.
+		 *
+		 * @param contentType
+		 *            Content-Type of the response
+		 * @param firstByte
+		 *            Time the response started arriving, from nanoTime()
+		 * @param readNanos
+		 *            Time spent waiting for the response to be read
+		 */
+		public void finish(String contentType, long firstByte, long readNanos) {
+			write(new Exchange(url, form, firstByte - start, readNanos,
+					contentType, null, content.toByteArray()));
+		}
+
+		/**
+		 * Record that the request failed.
+		 */
+		public void fail(String error) {
+			write(new Exchange(url, form, System.nanoTime() - start, 0, null,
+					redact(error, password), new byte[0]));
+		}
+	}
+
+	/* Set when recording */
+	private DataOutputStream out = null;
+	private final HashSet<String> recordedLists = new HashSet<String>();
+
+	/* Set when replaying */
+	private final boolean replaying;
+	private final boolean originalTimings;
+	private final Vector<String[]> lists = new Vector<String[]>();
+	private final HashMap<String, Vector<Exchange>> exchanges = new HashMap<String, Vector<Exchange>>();
+	private final HashMap<String, Integer> replayed = new HashMap<String, Integer>();
+	private int exchangeCount = 0;
+
+	private ExchangeArchive(boolean replaying, boolean originalTimings) {
+		this.replaying = replaying;
+		this.originalTimings = originalTimings;
+	}
+
+	/**
+	 * Start recording to a file, replacing anything in it.
+	 */
+	public static ExchangeArchive record(File f) throws IOException {
+		ExchangeArchive a = new ExchangeArchive(false, false);
+		a.out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(f)));
+		a.out.writeInt(MAGIC);
+		a.out.writeInt(VERSION);
+		a.out.flush();
+		return a;
+	}
+
+	/**
+	 * Load a recording for replaying.
+	 *
+	 * @param f
+	 *            File to load
+	 * @param originalTimings
+	 *            true to take as long as the original requests did, false to
+	 *            answer immediately
+	 */
+	public static ExchangeArchive replay(File f, boolean originalTimings)
+			throws IOException {
+		ExchangeArchive a = new ExchangeArchive(true, originalTimings);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(f)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a recording, or an unsupported version");
+			while (true) {
+				byte[] block;
+				try {
+					block = new byte[in.readInt()];
+					in.readFully(block);
+				} catch (EOFException e) {
+					/* End of file, or a record that was cut off */
+					break;
+				}
+				a.readRecord(new DataInputStream(new InflaterInputStream(
+						new ByteArrayInputStream(block))));
+			}
+		} finally {
+			in.close();
+		}
+		return a;
+	}
+
+	private void readRecord(DataInputStream r) throws IOException {
+		byte type = r.readByte();
+		if (type == RECORD_LIST) {
+			lists.add(new String[] { r.readUTF(), r.readUTF(),
+					r.readBoolean() ? "1" : "0" });
+		} else if (type == RECORD_EXCHANGE) {
+			String url = r.readUTF();
+			String form = r.readBoolean() ? r.readUTF() : null;
+			long waitNanos = r.readLong();
+			long readNanos = r.readLong();
+			String contentType = r.readBoolean() ? r.readUTF() : null;
+			String error = r.readBoolean() ? r.readUTF() : null;
+			byte[] content = new byte[r.readInt()];
+			r.readFully(content);
+
+			String key = key(url, form);
+			Vector<Exchange> v = exchanges.get(key);
+			if (v == null) {
+				v = new Vector<Exchange>();
+				exchanges.put(key, v);
+			}
+			v.add(new Exchange(url, form, waitNanos, readNanos, contentType,
+					error, content));
+			exchangeCount++;
+		}
+	}
+
+	public boolean isReplaying() {
+		return replaying;
+	}
+
+	/**
+	 * Get the number of exchanges loaded for replaying.
+	 */
+	public int getExchangeCount() {
+		return exchangeCount;
+	}
+
+	/**
+	 * Create the lists that were recorded, to replay their requests. Their
+	 * passwords are not known, but they're not needed either.
+	 */
+	public Vector<ListServer> createListServers() {
+		Vector<ListServer> servers = new Vector<ListServer>();
+		for (int i = 0; i < lists.size(); i++) {
+			String[] l = lists.get(i);
+			ListServer s = ListServer.Create(l[0], l[1], REDACTED, "", "");
+			s.setLazyContent(l[2].equals("1"));
+			servers.add(s);
+		}
+		return servers;
+	}
+
+	/**
+	 * Stop recording.
+	 */
+	public synchronized void close() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			log.warning(String.format("Failed to close recording: %s", e
+					.getMessage()));
+		}
+		out = null;
+	}
+
+	/**
+	 * Replace any password in a URL, form or message.
+	 *
+	 * @param s
+	 *            The string to redact, may be null
+	 * @param password
+	 *            The password of the list, which is replaced wherever it is
+	 *            found. May be null.
+	 */
+	public static String redact(String s, String password) {
+		if (s == null)
+			return null;
+		Matcher m = passwordParamPattern.matcher(s);
+		s = m.replaceAll("$1$2=" + REDACTED);
+		if (password != null && password.length() > 0) {
+			s = s.replace(password, REDACTED);
+			try {
+				s = s.replace(URLEncoder.encode(password, "UTF-8"), REDACTED);
+			} catch (UnsupportedEncodingException e) {
+				/* UTF-8 is always supported */
+			}
+		}
+		return s;
+	}
+
+	private static String key(String url, String form) {
+		return (form == null) ? url : url + "\n" + form;
+	}
+
+	/**
+	 * Start recording a request.
+	 *
+	 * @param list
+	 *            The list making the request
+	 * @param url
+	 *            URL of the request
+	 * @param form
+	 *            Form being posted, or null
+	 */
+	public Recording startExchange(ListServer list, String url, String form) {
+		synchronized (this) {
+			if (out != null && recordedLists.add(list.getName())) {
+				try {
+					ByteArrayOutputStream buf = new ByteArrayOutputStream();
+					DataOutputStream r = new DataOutputStream(
+							new DeflaterOutputStream(buf));
+					r.writeByte(RECORD_LIST);
+					r.writeUTF(list.getName());
+					r.writeUTF(list.getRootUrl());
+					r.writeBoolean(list.getLazyContent());
+					r.close();
+					writeBlock(buf.toByteArray());
+				} catch (IOException e) {
+					recordFailed(e);
+				}
+			}
+		}
+		return new Recording(url, form, list.getPassword());
+	}
+
+	private synchronized void write(Exchange e) {
+		if (out == null)
+			return;
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream r = new DataOutputStream(new DeflaterOutputStream(
+					buf));
+			r.writeByte(RECORD_EXCHANGE);
+			r.writeUTF(e.url);
+			r.writeBoolean(e.form != null);
+			if (e.form != null)
+				r.writeUTF(e.form);
+			r.writeLong(e.waitNanos);
+			r.writeLong(e.readNanos);
+			r.writeBoolean(e.contentType != null);
+			if (e.contentType != null)
+				r.writeUTF(e.contentType);
+			r.writeBoolean(e.error != null);
+			if (e.error != null)
+				r.writeUTF(e.error);
+			r.writeInt(e.content.length);
+			r.write(e.content);
+			r.close();
+			writeBlock(buf.toByteArray());
+		} catch (IOException ex) {
+			recordFailed(ex);
+		}
+	}
+
+	private void writeBlock(byte[] block) throws IOException {
+		out.writeInt(block.length);
+		out.write(block);
+		out.flush();
+	}
+
+	/**
+	 * Stop recording after a write error, rather than failing the requests.
+	 */
+	private void recordFailed(IOException e) {
+		log.warning(String.format("Failed to write recording: %s", e
+				.getMessage()));
+		try {
+			out.close();
+		} catch (IOException ex) {
+		}
+		out = null;
+	}
+
+	/**
+	 * Find the response to replay for a request. Identical requests get the
+	 * responses in the order they were recorded, and once those run out the
+	 * last one is repeated.
+	 *
+	 * @return the exchange, or null if the request was never recorded
+	 */
+	public synchronized Exchange find(String url, String form, String password) {
+		String key = key(redact(url, password), redact(form, password));
+		Vector<Exchange> v = exchanges.get(key);
+		if (v == null)
+			return null;
+		Integer next = replayed.get(key);
+		int i = (next == null) ? 0 : next.intValue();
+		replayed.put(key, i + 1);
+		return v.get(Math.min(i, v.size() - 1));
+	}
+
+	/**
+	 * Wait until the response to a replayed request should start arriving.
+	 */
+	public void waitForResponse(Exchange e) {
+		if (originalTimings)
+			sleepNanos(e.waitNanos);
+	}
+
+	/**
+	 * Get the contents of a replayed response. With original timings, the
+	 * contents are handed out as slowly as they were originally read.
+	 */
+	public InputStream openContent(final Exchange e) {
+		InputStream in = new ByteArrayInputStream(e.content);
+		if (!originalTimings || e.readNanos <= 0 || e.content.length == 0)
+			return in;
+		return new FilterInputStream(in) {
+			private final long start = System.nanoTime();
+			private long pos = 0;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					pos += n;
+					sleepNanos(start + e.readNanos * pos / e.content.length
+							- System.nanoTime());
+				}
+				return n;
+			}
+		};
+	}
+
+	private static void sleepNanos(long nanos) {
+		if (nanos <= 0)
+			return;
+		try {
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		} catch (InterruptedException e) {
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * FetchScheduler.java - This class holds a shared, bounded scheduler for talking to list servers.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Runs tasks (typically ListServer.Populate()) on a fixed number of
+ *         worker threads, while making sure that no more than a few tasks are
+ *         talking to the same host at any given time. Tasks for a host that is
+ *         already busy are held back here, and handed to the workers once one
+ *         of the running tasks for that host finishes.
+ */
+public class FetchScheduler {
+	/* Total number of worker threads, across all hosts */
+	public static final int MAX_WORKERS = 6;
+	/* Number of tasks allowed to run against the same host at once */
+	public static final int MAX_PER_HOST = 2;
+
+	private static FetchScheduler instance = null;
+
+	private final int maxPerHost;
+	private final ExecutorService workers;
+	private final HashMap<String, LinkedList<Runnable>> pending;
+	private final HashMap<String, Integer> active;
+
+	public FetchScheduler(int maxWorkers, int maxPerHost) {
+		this.maxPerHost = maxPerHost;
+		this.workers = Executors.newFixedThreadPool(maxWorkers,
+				new ThreadFactory() {
+					private int counter = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, String.format(
+								"FetchWorker-%d", ++counter));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.pending = new HashMap<String, LinkedList<Runnable>>();
+		this.active = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Get the scheduler shared by the whole application.
+	 *
+	 * @return the shared FetchScheduler instance
+	 */
+	public static synchronized FetchScheduler getInstance() {
+		if (instance == null)
+			instance = new FetchScheduler(MAX_WORKERS, MAX_PER_HOST);
+		return instance;
+	}
+
+	/**
+	 * Queue a task that talks to the given host. The task is run as soon as
+	 * there is both a free worker and a free slot for the host.
+	 *
+	 * @param host
+	 *            Host the task will connect to, as returned by
+	 *            ListServer.getHost()
+	 * @param task
+	 *            The task to run
+	 */
+	public synchronized void submit(String host, Runnable task) {
+		LinkedList<Runnable> queue = pending.get(host);
+		if (queue == null) {
+			queue = new LinkedList<Runnable>();
+			pending.put(host, queue);
+		}
+		queue.add(task);
+		dispatch(host);
+	}
+
+	/**
+	 * Get the number of tasks that are either running or waiting to run.
+	 *
+	 * @return number of outstanding tasks
+	 */
+	public synchronized int getOutstandingCount() {
+		int count = 0;
+		for (Integer i : active.values())
+			count += i;
+		for (LinkedList<Runnable> queue : pending.values())
+			count += queue.size();
+		return count;
+	}
+
+	/**
+	 * Hand as many waiting tasks for this host over to the workers as the
+	 * per-host limit allows. Must be called with the lock held.
+	 */
+	private void dispatch(final String host) {
+		LinkedList<Runnable> queue = pending.get(host);
+		Integer running = active.get(host);
+		int count = (running == null) ? 0 : running;
+
+		while (queue != null && !queue.isEmpty() && count < maxPerHost) {
+			final Runnable task = queue.removeFirst();
+			count++;
+			workers.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						taskDone(host);
+					}
+				}
+			});
+		}
+		if (queue != null && queue.isEmpty())
+			pending.remove(host);
+		if (count > 0)
+			active.put(host, count);
+		else
+			active.remove(host);
+	}
+
+	/**
+	 * Called by a worker when a task for this host has finished, to release
+	 * its slot and start the next one for the same host, if any.
+	 */
+	private synchronized void taskDone(String host) {
+		Integer running = active.get(host);
+		if (running != null)
+			active.put(host, running - 1);
+		dispatch(host);
+	}
+}
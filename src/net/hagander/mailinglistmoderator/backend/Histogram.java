@@ -0,0 +1,114 @@
+/*
+ * Histogram.java - This class holds a rolling window of measurements.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Keeps the most recent values of a measurement, such as the connect
+ *         time of each request, and calculates percentiles over them. Older
+ *         values are dropped as new ones come in, so the numbers reflect how
+ *         things are working right now.
+ */
+public class Histogram {
+	/* Number of values to keep */
+	public static final int WINDOW = 100;
+
+	private final double[] values = new double[WINDOW];
+	private int next = 0;
+	private long count = 0;
+
+	/**
+	 * Add a value.
+	 */
+	public synchronized void add(double value) {
+		values[next] = value;
+		next = (next + 1) % WINDOW;
+		count++;
+	}
+
+	/**
+	 * Get the number of values added, including the ones no longer kept.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the values currently in the window, sorted.
+	 */
+	private double[] sorted() {
+		int n = (int) Math.min(count, WINDOW);
+		double[] s = new double[n];
+		System.arraycopy(values, 0, s, 0, n);
+		Arrays.sort(s);
+		return s;
+	}
+
+	/**
+	 * Get a percentile of the values in the window.
+	 *
+	 * @param p
+	 *            Percentile, between 0 and 100
+	 * @return the value, or 0 if there are no values
+	 */
+	public synchronized double getPercentile(double p) {
+		double[] s = sorted();
+		if (s.length == 0)
+			return 0;
+		int i = (int) Math.ceil(p / 100 * s.length) - 1;
+		return s[Math.max(0, Math.min(i, s.length - 1))];
+	}
+
+	/**
+	 * Get the average of the values in the window.
+	 */
+	public synchronized double getMean() {
+		int n = (int) Math.min(count, WINDOW);
+		if (n == 0)
+			return 0;
+		double sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += values[i];
+		return sum / n;
+	}
+
+	/**
+	 * Get a JSON object with the summary and the values in the window, oldest
+	 * first.
+	 */
+	public synchronized String toJson() {
+		StringBuilder sb = new StringBuilder();
+		/* Always use a dot for decimals, whatever the locale */
+		sb.append(String.format(Locale.US,
+				"{\"count\": %d, \"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, \"max\": %.3f, \"values\": [",
+				count, getMean(), getPercentile(50), getPercentile(90),
+				getPercentile(100)));
+		int n = (int) Math.min(count, WINDOW);
+		int start = (count > WINDOW) ? next : 0;
+		for (int i = 0; i < n; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(String.format(Locale.US, "%.3f", values[(start + i) % WINDOW]));
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	@Override
+	public synchronized String toString() {
+		if (count == 0)
+			return "-";
+		return String.format("%.0f/%.0f/%.0f", getPercentile(50),
+				getPercentile(90), getPercentile(100));
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * HostConnectionPool.java - This class holds a per-host pool of keep-alive connection slots.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         The actual sockets are owned by the keep-alive cache in
+ *         HttpURLConnection, which will hand a connection back out as long as
+ *         the previous response on it was read to the end and closed (not
+ *         disconnected). This class sits in front of that cache and decides how
+ *         many requests we run against each host at once.
+ *
+ *         The pool can't see which requests the cache sends on a new
+ *         connection, so it doesn't try to count them. Opening a new
+ *         connection shows in the connect and TLS timings of each list
+ *         instead.
+ *
+ *         There is one pool per protocol, host and port, shared by all the
+ *         ListServers that point to it.
+ */
+public class HostConnectionPool {
+	/* Maximum number of connections to open against a single host */
+	public static final int MAX_CONNECTIONS = 4;
+
+	private static final HashMap<String, HostConnectionPool> pools = new HashMap<String, HostConnectionPool>();
+
+	private final String key;
+	private int leased;
+	private long requests;
+	/* Bytes received as sent by the server, and after decompression */
+	private long wireBytes;
+	private long contentBytes;
+
+	private HostConnectionPool(String key) {
+		this.key = key;
+		this.leased = 0;
+	}
+
+	/**
+	 * Get the pool for the host the given URL points to.
+	 *
+	 * @param u
+	 *            URL that is about to be fetched
+	 * @return the pool for that host, shared with everybody else using it
+	 */
+	public static HostConnectionPool forUrl(URL u) {
+		int port = (u.getPort() == -1) ? u.getDefaultPort() : u.getPort();
+		String key = String.format("%s://%s:%d", u.getProtocol(), u.getHost(), port);
+		synchronized (pools) {
+			HostConnectionPool pool = pools.get(key);
+			if (pool == null) {
+				pool = new HostConnectionPool(key);
+				pools.put(key, pool);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Get all the pools created so far, to report statistics.
+	 *
+	 * @return a list of all pools
+	 */
+	public static Vector<HostConnectionPool> getAllPools() {
+		synchronized (pools) {
+			return new Vector<HostConnectionPool>(pools.values());
+		}
+	}
+
+	/**
+	 * Lease a connection to this host, waiting if all connections are in use.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (leased >= MAX_CONNECTIONS)
+			wait();
+
+		leased++;
+		requests++;
+	}
+
+	/**
+	 * Return a connection leased with acquire().
+	 */
+	public synchronized void release() {
+		leased--;
+		notify();
+	}
+
+	/**
+	 * Count the size of a response that has been read.
+	 *
+	 * @param wire
+	 *            Number of bytes received from the server
+	 * @param content
+	 *            Number of bytes after decompression, the same as wire if
+	 *            the response was not compressed
+	 */
+	public synchronized void addTransfer(long wire, long content) {
+		wireBytes += wire;
+		contentBytes += content;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public synchronized long getRequestCount() {
+		return requests;
+	}
+
+	public synchronized long getWireBytes() {
+		return wireBytes;
+	}
+
+	public synchronized long getContentBytes() {
+		return contentBytes;
+	}
+
+	/**
+	 * Get the share of the content that compression saved us from
+	 * transferring.
+	 *
+	 * @return savings, between 0 and 1
+	 */
+	public synchronized double getCompressionSavings() {
+		if (contentBytes == 0)
+			return 0;
+		return 1 - (double) wireBytes / contentBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"%s: %d requests, %d bytes transferred for %d bytes of content (%.0f%% saved)",
+				key, requests, wireBytes, contentBytes,
+				getCompressionSavings() * 100);
+	}
+}
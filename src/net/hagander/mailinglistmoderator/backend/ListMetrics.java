@@ -0,0 +1,144 @@
+/*
+ * ListMetrics.java - This class holds timing and size measurements for a single list.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Measurements of the requests made for a list, and of the work done
+ *         to parse them, so we can tell where the time goes when refreshing
+ *         a list is slow.
+ *
+ *         DNS and connect times are recorded for every request, and are close
+ *         to zero when the name was cached or the connection was kept alive,
+ *         since we can't tell from here when a new connection was opened. TLS
+ *         times are only measured, and only recorded when there was a
+ *         handshake, for lists with a whitelisted certificate, which have a
+ *         socket factory of their own. For them, connect time is the TCP
+ *         connection alone, while for other https lists it includes the TLS
+ *         handshake. Time to first byte is measured from when the request has
+ *         been sent until the response headers arrive, and download time from
+ *         there until the response has been read. Parse time and message count
+ *         are recorded once per refresh.
+ *
+ *         All times are in milliseconds.
+ */
+public class ListMetrics {
+	private final Histogram dns = new Histogram();
+	private final Histogram connect = new Histogram();
+	private final Histogram tls = new Histogram();
+	private final Histogram ttfb = new Histogram();
+	private final Histogram download = new Histogram();
+	private final Histogram bytes = new Histogram();
+	private final Histogram parse = new Histogram();
+	private final Histogram messages = new Histogram();
+
+	/**
+	 * Record the measurements of a single request.
+	 *
+	 * @param dnsTime
+	 *            Time to look up the host name, or -1 if not measured
+	 * @param connectTime
+	 *            Time to connect, or -1 if not measured
+	 * @param tlsTime
+	 *            Time for the TLS handshake, or -1 if there was none
+	 * @param ttfbTime
+	 *            Time to first byte
+	 * @param downloadTime
+	 *            Time to download the response
+	 * @param size
+	 *            Number of bytes downloaded
+	 */
+	public void recordRequest(double dnsTime, double connectTime,
+			double tlsTime, double ttfbTime, double downloadTime, long size) {
+		if (dnsTime >= 0)
+			dns.add(dnsTime);
+		if (connectTime >= 0)
+			connect.add(connectTime);
+		if (tlsTime >= 0)
+			tls.add(tlsTime);
+		ttfb.add(ttfbTime);
+		download.add(downloadTime);
+		bytes.add(size);
+	}
+
+	/**
+	 * Record the measurements of a refresh.
+	 *
+	 * @param parseTime
+	 *            Time spent parsing the pages
+	 * @param count
+	 *            Number of messages found
+	 */
+	public void recordRefresh(double parseTime, int count) {
+		parse.add(parseTime);
+		messages.add(count);
+	}
+
+	public Histogram getDns() {
+		return dns;
+	}
+
+	public Histogram getConnect() {
+		return connect;
+	}
+
+	public Histogram getTls() {
+		return tls;
+	}
+
+	public Histogram getTimeToFirstByte() {
+		return ttfb;
+	}
+
+	public Histogram getDownload() {
+		return download;
+	}
+
+	public Histogram getBytes() {
+		return bytes;
+	}
+
+	public Histogram getParse() {
+		return parse;
+	}
+
+	public Histogram getMessages() {
+		return messages;
+	}
+
+	/**
+	 * Get a JSON object with all the measurements.
+	 */
+	public String toJson() {
+		return String.format(
+				"{\"dns\": %s, \"connect\": %s, \"tls\": %s, \"ttfb\": %s, \"download\": %s, \"bytes\": %s, \"parse\": %s, \"messages\": %s}",
+				dns.toJson(), connect.toJson(), tls.toJson(), ttfb.toJson(),
+				download.toJson(), bytes.toJson(), parse.toJson(), messages
+						.toJson());
+	}
+
+	/**
+	 * Quote a string for use in JSON.
+	 */
+	public static String jsonString(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+}
@@ -7,57 +7,85 @@
  */
 package net.hagander.mailinglistmoderator.backend;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringWriter;
-import java.math.BigInteger;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.security.KeyManagementException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
+import java.util.HashMap;
 import java.util.Vector;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
-import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLPeerUnverifiedException;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.X509TrustManager;
-
-import org.xmlpull.v1.XmlSerializer;
 
 import net.hagander.mailinglistmoderator.backend.MailMessage.statuslevel;
 import net.hagander.mailinglistmoderator.backend.providers.Dummy;
 import net.hagander.mailinglistmoderator.backend.providers.Mailman;
 import net.hagander.mailinglistmoderator.backend.providers.Majordomo2;
 import net.hagander.mailinglistmoderator.backend.providers.Unconfigured;
-import android.content.SharedPreferences;
-import android.util.Log;
 
 /**
  * 
  * @author Magnus Hagander <magnus@hagander.net>
  * 
+ *         Nothing in the backend depends on Android, so the providers can be
+ *         run and benchmarked on a plain JVM. Reading the list settings from
+ *         the preferences is done by the application.
  */
 public abstract class ListServer {
+	private static final Logger log = Logger.getLogger("ListServer");
+
 	protected String listname;
 	protected String rooturl;
 	protected String password;
 	protected String override_certname;
 	protected String whitelisted_cert;
+	protected boolean lazy_content;
 
 	protected boolean populated;
 	protected boolean exceptioned;
+	protected boolean stale;
 	protected String status;
 	protected Vector<MailMessage> messages;
 
+	/*
+	 * Checksum of the page the queue was last successfully enumerated from,
+	 * or -1 if there is none. Set through checkPageChecksum().
+	 */
+	private long pageChecksum = -1;
+	private long newPageChecksum = -1;
+	private boolean pageUnchanged;
+
+	/*
+	 * Held while the queue is populated or loaded from a snapshot, since the
+	 * background service and the main activity may refresh the same list.
+	 */
+	private final Object populateLock = new Object();
+
+	/* How fast new messages show up, updated on every refresh */
+	private final ArrivalRate arrivals = new ArrivalRate();
+
+	/* Timings of requests and parsing */
+	private final ListMetrics metrics = new ListMetrics();
+	/* Time spent parsing during the current refresh, in nanoseconds */
+	private final AtomicLong parseNanos = new AtomicLong();
+
+	/* Refreshes done, and how many of them found an unchanged page */
+	private static long refreshCount = 0;
+	private static long unchangedCount = 0;
+
 	/**
 	 * 
 	 * @param name
@@ -77,9 +105,108 @@ public abstract class ListServer {
 
 		this.populated = false;
 		this.exceptioned = false;
+		this.stale = false;
 		this.messages = new Vector<MailMessage>();
 	}
 
+	/*
+	 * Directory where providers can keep files between runs, or null if
+	 * nothing should be written to disk.
+	 */
+	private static File cacheDirectory = null;
+
+	/**
+	 * Set the directory where providers can keep cached information about
+	 * their lists between runs.
+	 * 
+	 * @param dir
+	 *            Directory to use, or null to keep everything in memory only
+	 */
+	public static void setCacheDirectory(File dir) {
+		cacheDirectory = dir;
+	}
+
+	/**
+	 * Get the directory where providers can keep cached information.
+	 * 
+	 * @return the directory, or null if nothing should be written to disk
+	 */
+	public static File getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+	/*
+	 * Timeouts for connecting to a server and for waiting for data from it,
+	 * so a server that stops responding fails the refresh instead of
+	 * hanging it.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+	public static final int DEFAULT_READ_TIMEOUT = 60000;
+	private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private static int readTimeout = DEFAULT_READ_TIMEOUT;
+
+	/* Archive all requests are recorded to or replayed from, if any */
+	private static volatile ExchangeArchive exchangeArchive = null;
+
+	/**
+	 * Record all requests to an archive, or replay them from it instead of
+	 * talking to the servers.
+	 * 
+	 * @param archive
+	 *            The archive, or null to go back to normal
+	 */
+	public static void setExchangeArchive(ExchangeArchive archive) {
+		exchangeArchive = archive;
+	}
+
+	public static ExchangeArchive getExchangeArchive() {
+		return exchangeArchive;
+	}
+
+	/**
+	 * Set the timeouts used for all requests.
+	 * 
+	 * @param connect
+	 *            Time to wait for a connection, in milliseconds
+	 * @param read
+	 *            Time to wait for data on an open connection, in milliseconds
+	 */
+	public static void setTimeouts(int connect, int read) {
+		connectTimeout = connect;
+		readTimeout = read;
+	}
+
+	/**
+	 * Get the number of successful refreshes of any list.
+	 */
+	public static synchronized long getRefreshCount() {
+		return refreshCount;
+	}
+
+	/**
+	 * Get the number of refreshes that were skipped because the page was the
+	 * same as the last time.
+	 */
+	public static synchronized long getUnchangedCount() {
+		return unchangedCount;
+	}
+
+	/**
+	 * Get the share of refreshes that were skipped because the page was the
+	 * same as the last time.
+	 */
+	public static synchronized double getUnchangedRate() {
+		if (refreshCount == 0)
+			return 0;
+		return (double) unchangedCount / refreshCount;
+	}
+
+	private static synchronized void countRefresh(boolean unchanged) {
+		refreshCount++;
+		if (unchanged)
+			unchangedCount++;
+	}
+
 	/**
 	 * Create a list server instance, by figuring out which type of list it is,
 	 * and instantiating the proper class.
@@ -106,26 +233,6 @@ public abstract class ListServer {
 		return new Unconfigured(name, rooturl, password);
 	}
 
-	/**
-	 * Create a ListServer instance by reading the application preferences for
-	 * it.
-	 * 
-	 * @param pref
-	 *            Instance of SharedPreferences to use.
-	 * @param name
-	 *            Name of the list.
-	 * @return A ListServer instance representing this server.
-	 */
-	public static ListServer CreateFromPreference(SharedPreferences pref,
-			String name) {
-		String baseurl = pref.getString(name + "_baseurl", "");
-		String password = pref.getString(name + "_password", "");
-		String override_certname = pref.getString(name+"_overridecertname", "");
-		String whitelisted_cert = pref.getString(name+"_whitelistedcert", "");
-
-		return Create(name, baseurl, password, override_certname, whitelisted_cert);
-	}
-
 	/*
 	 * Abstract methods, do be implemented by child classes.
 	 */
@@ -144,6 +251,37 @@ public abstract class ListServer {
 		return listname;
 	}
 
+	public String getRootUrl() {
+		return rooturl;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public String getOverrideCertname() {
+		return override_certname;
+	}
+
+	public String getWhitelistedCert() {
+		return whitelisted_cert;
+	}
+
+	/**
+	 * Return the host this list lives on, used to group lists that share a
+	 * server. Lists with a root URL that can't be parsed (such as the dummy
+	 * ones) are grouped by the full root URL instead.
+	 *
+	 * @return the name of the host
+	 */
+	public String getHost() {
+		try {
+			return new URL(rooturl).getHost();
+		} catch (MalformedURLException e) {
+			return rooturl;
+		}
+	}
+
 	/**
 	 * Get the current status for this list (loading, number of messages etc).
 	 * 
@@ -152,12 +290,32 @@ public abstract class ListServer {
 	public String getStatus() {
 		if (exceptioned)
 			return String.format("Exception: %s", status);
+		else if (populated && stale)
+			return String.format("%s (refreshing...)", status);
 		else if (populated)
 			return status;
 		else
 			return "loading...";
 	}
 
+	/**
+	 * Get the rate new messages have been showing up at on this list, used
+	 * to decide how often to check it.
+	 */
+	public ArrivalRate getArrivalRate() {
+		return arrivals;
+	}
+
+	/**
+	 * Check if the messages shown are from the snapshot saved last time,
+	 * and have not yet been refreshed from the server.
+	 * 
+	 * @return if the list is stale.
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+
 	/**
 	 * Check if this has been queried and populated with a list of mails to
 	 * moderate.
@@ -190,31 +348,278 @@ public abstract class ListServer {
 	/**
 	 * Populate the list with messages by querying the server.
 	 * 
+	 * If the list has been populated before, the new contents are merged
+	 * into the existing list: messages still in the queue are kept as they
+	 * are (including any Accept/Reject set on them), messages that are gone
+	 * are removed and new ones are added.
+	 * 
+	 * If the provider finds that the page it enumerates from is the same as
+	 * the last time (see checkPageChecksum()), the queue is left as it is.
+	 * 
 	 * Also sets the local status string.
+	 * 
+	 * Only one refresh of a list runs at a time. If another one is already
+	 * running, this waits for it to finish and then refreshes again, which
+	 * is cheap if the page hasn't changed in between.
+	 * 
+	 * @return the messages added and removed, or null if the list could not
+	 *         be enumerated.
 	 */
-	public void Populate() {
-		messages.clear();
-		populated = exceptioned = false;
+	public QueueDelta Populate() {
+		synchronized (populateLock) {
+			return DoPopulate();
+		}
+	}
+
+	private QueueDelta DoPopulate() {
+		exceptioned = false;
+		pageUnchanged = false;
+		newPageChecksum = -1;
+		parseNanos.set(0);
 		try {
 			Vector<MailMessage> msglist = EnumerateMessages();
-			if (msglist != null) {
-				messages.addAll(EnumerateMessages());
+			if (pageUnchanged || msglist != null)
+				metrics.recordRefresh(parseNanos.get() / 1000000.0,
+						pageUnchanged ? messages.size() : msglist.size());
+			if (pageUnchanged) {
+				countRefresh(true);
+				arrivals.record(System.currentTimeMillis(), 0);
+				SaveSnapshot();
+				return new QueueDelta(new Vector<MailMessage>(),
+						new Vector<MailMessage>());
+			}
+			else if (msglist != null) {
+				QueueDelta delta = mergeMessages(msglist);
+				pageChecksum = newPageChecksum;
 				populated = true;
+				stale = false;
 				status = String.format("%d unmoderated messages", messages.size());
+				arrivals.record(System.currentTimeMillis(), delta.getAdded()
+						.size());
+				SaveSnapshot();
+				countRefresh(false);
+				return delta;
 			}
 			else {
 				// Status is assumed to be set by by the routine that failed
+				pageChecksum = -1;
 				populated = false;
 				exceptioned = true;
+				return null;
 			}
 		}
 		catch (RuntimeException e) {
+			this.pageChecksum = -1;
+			this.populated = false;
 			this.exceptioned = true;
 			this.status = String.format("%s", e.getMessage());
 			throw e;
 		}
 	}
 
+	/**
+	 * Add time spent parsing to the measurements of the current refresh.
+	 * Time spent in a ResponseHandler is added automatically, other parsing
+	 * should be measured and added by the provider.
+	 * 
+	 * @param nanos
+	 *            Time spent, in nanoseconds
+	 */
+	protected void addParseTime(long nanos) {
+		parseNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Get the timing measurements for this list.
+	 */
+	public ListMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Check if the page a queue is enumerated from is identical to the one
+	 * it was enumerated from the last time. Providers call this from
+	 * EnumerateMessages() with the checksum returned by FetchUrl(), and if
+	 * it returns true they can skip parsing the page and return null, in
+	 * which case the queue is left as it is.
+	 * 
+	 * @param checksum
+	 *            Checksum of the page just fetched
+	 * @return true if the page is unchanged
+	 */
+	protected boolean checkPageChecksum(long checksum) {
+		newPageChecksum = checksum;
+		pageUnchanged = (checksum == pageChecksum);
+		return pageUnchanged;
+	}
+
+	/**
+	 * Tell that some of the messages on the page could not be read, so the
+	 * checksum of the page is not kept. Otherwise the next refresh would see
+	 * the same page and skip it, and the missing messages would never be
+	 * tried again. Call after checkPageChecksum().
+	 */
+	protected void setEnumerationIncomplete() {
+		newPageChecksum = -1;
+	}
+
+	/**
+	 * Get the file used to store the snapshot of this queue.
+	 * 
+	 * @return the file, or null if there is no cache directory
+	 */
+	private File getSnapshotFile() {
+		File dir = getCacheDirectory();
+		if (dir == null)
+			return null;
+		return new File(dir, String.format("snapshot-%08x", (rooturl + "|"
+				+ listname).hashCode()));
+	}
+
+	/**
+	 * Load the queue as it was last time it was populated, and mark it as
+	 * stale until Populate() has been run. Nothing is loaded if the list has
+	 * already been populated, or tried to, since that is newer than any
+	 * snapshot.
+	 * 
+	 * The snapshot of a large queue can take a while to read, so don't call
+	 * this on the UI thread.
+	 * 
+	 * @return true if a snapshot was loaded
+	 */
+	public boolean LoadSnapshot() {
+		synchronized (populateLock) {
+			return DoLoadSnapshot();
+		}
+	}
+
+	private boolean DoLoadSnapshot() {
+		if (populated || exceptioned)
+			return false;
+		File f = getSnapshotFile();
+		if (f == null)
+			return false;
+		try {
+			QueueSnapshot snapshot = QueueSnapshot.read(f);
+			if (snapshot == null)
+				return false;
+
+			Vector<MailMessage> msglist = new Vector<MailMessage>();
+			Vector<QueueSnapshot.Entry> entries = snapshot.getEntries();
+			for (int i = 0; i < entries.size(); i++) {
+				QueueSnapshot.Entry e = entries.get(i);
+				MailMessage m = RestoreMessage(e.id, e.sender, e.subject,
+						e.content);
+				if (m == null)
+					/* This provider can't restore messages */
+					return false;
+				msglist.add(m);
+			}
+			mergeMessages(msglist);
+			arrivals.restore(snapshot.getArrivalsUpdated(), snapshot
+					.getArrivalRate());
+			status = snapshot.getStatus();
+			populated = true;
+			stale = true;
+			return true;
+		} catch (Exception e) {
+			log.warning(String.format(
+					"Failed to load snapshot for %s: %s", listname, e.toString()));
+			return false;
+		}
+	}
+
+	/**
+	 * Save the current queue, so it can be loaded with LoadSnapshot() the
+	 * next time the program starts.
+	 */
+	private void SaveSnapshot() {
+		File f = getSnapshotFile();
+		if (f == null)
+			return;
+		try {
+			QueueSnapshot.write(f, status, arrivals, messages);
+		} catch (IOException e) {
+			/* Not fatal, we just won't have a snapshot next time */
+			log.warning(String.format(
+					"Failed to save snapshot for %s: %s", listname, e.toString()));
+		}
+	}
+
+	/**
+	 * Recreate a message that was stored in a snapshot. Providers that
+	 * support snapshots must override this.
+	 * 
+	 * @return the message, or null if the provider can't restore messages
+	 */
+	protected MailMessage RestoreMessage(String id, String sender,
+			String subject, String content) {
+		return null;
+	}
+
+	/**
+	 * Replace the contents of the queue with a freshly enumerated list,
+	 * keeping the existing objects for messages that are in both.
+	 */
+	private QueueDelta mergeMessages(Vector<MailMessage> msglist) {
+		Vector<MailMessage> added = new Vector<MailMessage>();
+		Vector<MailMessage> removed = new Vector<MailMessage>();
+
+		synchronized (messages) {
+			HashMap<String, MailMessage> current = new HashMap<String, MailMessage>();
+			for (int i = 0; i < messages.size(); i++)
+				current.put(messages.get(i).getId(), messages.get(i));
+
+			Vector<MailMessage> merged = new Vector<MailMessage>(msglist.size());
+			for (int i = 0; i < msglist.size(); i++) {
+				MailMessage existing = current.remove(msglist.get(i).getId());
+				if (existing != null) {
+					merged.add(existing);
+				} else {
+					merged.add(msglist.get(i));
+					added.add(msglist.get(i));
+				}
+			}
+			/* Whatever is left was not in the new list */
+			for (int i = 0; i < messages.size(); i++)
+				if (current.containsKey(messages.get(i).getId()))
+					removed.add(messages.get(i));
+
+			messages.clear();
+			messages.addAll(merged);
+		}
+		return new QueueDelta(added, removed);
+	}
+
+	/**
+	 * Set if the contents of messages should only be loaded when they are
+	 * looked at, instead of when the queue is enumerated. Only providers
+	 * that can fetch a single message pay any attention to this.
+	 * 
+	 * @param lazy
+	 *            true to load contents on demand
+	 */
+	public void setLazyContent(boolean lazy) {
+		this.lazy_content = lazy;
+	}
+
+	public boolean getLazyContent() {
+		return lazy_content;
+	}
+
+	/**
+	 * Make sure the content of a message has been loaded, fetching it from
+	 * the server if the queue was enumerated without contents. This may
+	 * take a while, so don't call it on the UI thread.
+	 * 
+	 * Providers that load content on demand must override this.
+	 * 
+	 * @param msg
+	 *            The message to load content for
+	 */
+	public void LoadMessageContent(MailMessage msg) {
+	}
+
 	/**
 	 * Get the number of messages in the queue.
 	 * 
@@ -255,129 +660,334 @@ public abstract class ListServer {
 	 * Utility functions for implementations to call.
 	 */
 
+	/**
+	 * Interface for code that wants to consume the contents of an URL as it
+	 * is being downloaded, rather than getting it all back as one string.
+	 */
+	protected interface ResponseHandler {
+		public void handleResponse(Reader r) throws IOException;
+	}
+
+	/**
+	 * Handler that collects the whole response, into a buffer taken from a
+	 * shared pool. Call release() when done with the page.
+	 */
+	protected static class PageCollector implements ResponseHandler {
+		private final ResponseBuffer buffer = new ResponseBuffer();
+
+		public PageCollector() {
+		}
+
+		public void handleResponse(Reader r) throws IOException {
+			buffer.readFrom(r);
+		}
+
+		/**
+		 * Get the contents of the page. This is not a copy, so it's only
+		 * valid until release() is called.
+		 */
+		public CharSequence getPage() {
+			return buffer;
+		}
+
+		/**
+		 * Get a reader over the contents of the page, valid until release()
+		 * is called.
+		 */
+		public Reader getReader() {
+			return buffer.getReader();
+		}
+
+		/**
+		 * Give the buffer back to the pool.
+		 */
+		public void release() {
+			buffer.release();
+		}
+	}
+
 	/**
 	 * Connect and fetch an URL, returning a string with the contents of the
 	 * URL.
 	 */
-	private Pattern DNPattern = Pattern.compile("^CN=([^,]+),", Pattern.CASE_INSENSITIVE);
 	protected String FetchUrl(String url) {
+		PageCollector collector = new PageCollector();
 		try {
-			final URL u = new URL(url);
-			URLConnection c = u.openConnection(java.net.Proxy.NO_PROXY);
+			FetchUrl(url, collector);
+			return collector.getPage().toString();
+		} finally {
+			collector.release();
+		}
+	}
 
-			if (u.getProtocol().equals("https")) {
-				HttpsURLConnection sslconn  = (HttpsURLConnection) c;
-				if (override_certname != null && !override_certname.equals("")) {
-					sslconn.setHostnameVerifier(new HostnameVerifier() {
-						public boolean verify(String hostname, SSLSession session) {
-							/* For each certificate, check */
-							X509Certificate cert;
-							try {
-								cert = (X509Certificate)session.getPeerCertificates()[0];
-							}
-							catch (SSLPeerUnverifiedException e) {
-								throw new RuntimeException(String.format(
-										"Failed to verify peer for url: %s (%s)", e, u.toString()));
-							}
-							Matcher m = DNPattern.matcher(cert.getSubjectDN().getName());
-							if (!m.find()) {
-								throw new RuntimeException(String.format(
-										"Could not extract hostname from '%s' for url %s", cert.getSubjectDN(), u.toString()));
-							}
-							String sslname = m.group(1);
-							if (sslname.equals(override_certname)) {
-								/* Matched the overridden certname, so allow this connection */
-								return true;
-							}
-
-							/*
-							 * Could return false here, but that won't show as
-							 * useful error message, so throw RuntimeEception
-							 * instead
-							 */
-							throw new RuntimeException(String.format(
-									"Certificate hostname '%s' does not match expected hostname '%s'", sslname, override_certname));
-						}
-					});
-				}
+	/**
+	 * Connect and fetch an URL, passing the contents to the handler as they
+	 * arrive. Whatever the handler leaves unread is skipped, so the
+	 * connection can be reused.
+	 * 
+	 * @return a checksum of the raw contents, calculated as they are read
+	 */
+	protected long FetchUrl(String url, ResponseHandler handler) {
+		return DoRequest(url, null, handler);
+	}
 
-				/* Let's see if we should also check the actual certificate */
-				if (whitelisted_cert != null && !whitelisted_cert.equals("")) {
-					SSLContext context;
-					try {
-						context = SSLContext.getInstance("TLS");
-					} catch (NoSuchAlgorithmException e) {
-						throw new RuntimeException("Could not find TLS context!");
-					}
-					try {
-						context.init(null,
-								new X509TrustManager[] { new X509TrustManager() {
-									public void checkClientTrusted(
-											X509Certificate[] chain, String authType)
-											throws CertificateException {
-									}
-
-									public void checkServerTrusted(
-											X509Certificate[] chain, String authType)
-											throws CertificateException {
-
-										MessageDigest md;
-										try {
-											md = MessageDigest.getInstance("SHA-1");
-										} catch (NoSuchAlgorithmException e) {
-											throw new RuntimeException("Could not find SHA-1 digest");
-										}
-										md.update(chain[0].getEncoded());
-										byte[] digest = md.digest();
-										BigInteger bi = new BigInteger(1, digest);
-									    String fingerprint = String.format("%0" + (digest.length << 1) + "X", bi);
-
-									    if (!fingerprint.equals(whitelisted_cert)) {
-									    	throw new CertificateException("Certificate fingerprint does not match the configured one!");
-									    }
-
-									    /* Otherwise, if it matches, we said override, so trust everything */
-									}
-
-									public X509Certificate[] getAcceptedIssuers() {
-										return new X509Certificate[0];
-									}
-								} }, null);
-					} catch (KeyManagementException e) {
-						throw new RuntimeException(String.format("Unable to set up key management: %s", e.toString()));
-					}
-					sslconn.setSSLSocketFactory(context.getSocketFactory());
-				}
-			}
-			InputStreamReader isr = new InputStreamReader(c.getInputStream());
-			BufferedReader r = new BufferedReader(isr);
-			StringWriter sw = new StringWriter();
-			String line;
-			while ((line = r.readLine()) != null) {
-				sw.write(line);
-				sw.write("\n");
-			}
-			r.close();
-			isr.close();
-			return sw.toString();
+	/**
+	 * POST a form to an URL, returning a string with the contents of the
+	 * response.
+	 * 
+	 * @param url
+	 *            URL to post to
+	 * @param form
+	 *            The form data, already URL encoded
+	 */
+	protected String PostUrl(String url, String form) {
+		PageCollector collector = new PageCollector();
+		try {
+			DoRequest(url, form, collector);
+			return collector.getPage().toString();
+		} finally {
+			collector.release();
+		}
+	}
+
+	/**
+	 * Send a request, passing the response to the handler.
+	 * 
+	 * @param url
+	 *            URL to request
+	 * @param form
+	 *            URL encoded form data to POST, or null to GET the URL
+	 * @param handler
+	 *            Handler for the response
+	 * @return a checksum of the raw contents, calculated as they are read
+	 */
+	private long DoRequest(String url, String form, ResponseHandler handler) {
+		final URL u;
+		try {
+			u = new URL(url);
 		} catch (MalformedURLException e) {
 			throw new RuntimeException(String.format(
 					"Failed to fetch url: %s (%s)", e, url));
+		}
+
+		ExchangeArchive archive = exchangeArchive;
+		if (archive != null && archive.isReplaying())
+			return ReplayRequest(archive, url, form, handler);
+		ExchangeArchive.Recording recording = (archive != null) ? archive
+				.startExchange(this, url, form) : null;
+
+		/*
+		 * Lease a connection slot for this host, so we share keep-alive
+		 * connections with all other lists on the same server, and don't
+		 * open too many at once.
+		 */
+		HostConnectionPool pool = HostConnectionPool.forUrl(u);
+		try {
+			pool.acquire();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(String.format(
+					"Interrupted waiting for connection: %s", url));
+		}
+		URLConnection c = null;
+		boolean reusable = false;
+		try {
+			/*
+			 * Look up the name ourselves to time it. The connection will
+			 * then get the address from the cache.
+			 */
+			long start = System.nanoTime();
+			InetAddress.getByName(u.getHost());
+			long dnsTime = System.nanoTime() - start;
+
+			c = u.openConnection(java.net.Proxy.NO_PROXY);
+			c.setConnectTimeout(connectTimeout);
+			c.setReadTimeout(readTimeout);
+			c.setRequestProperty("Connection", "keep-alive");
+			/*
+			 * The admin pages repeat the same markup for every message, so
+			 * they compress very well.
+			 */
+			c.setRequestProperty("Accept-Encoding", "gzip, deflate");
+
+			if (u.getProtocol().equals("https")) {
+				/*
+				 * Use the shared hostname verifier and socket factory if this
+				 * list has SSL overrides, so TLS sessions can be resumed.
+				 */
+				SSLContextCache.configure((HttpsURLConnection) c,
+						override_certname, whitelisted_cert);
+			}
+			byte[] body = null;
+			if (form != null) {
+				body = form.getBytes("US-ASCII");
+				c.setDoOutput(true);
+				c.setRequestProperty("Content-Type",
+						"application/x-www-form-urlencoded");
+				if (c instanceof HttpURLConnection)
+					((HttpURLConnection) c).setFixedLengthStreamingMode(body.length);
+			}
+
+			/*
+			 * Connect explicitly, so the TCP connection and TLS handshake
+			 * can be timed apart from the request itself.
+			 */
+			TimingSSLSocketFactory.takeHandshake();
+			long connectStart = System.nanoTime();
+			c.connect();
+			long connectTime = System.nanoTime() - connectStart;
+			TimingSSLSocketFactory.Handshake handshake = TimingSSLSocketFactory
+					.takeHandshake();
+
+			if (body != null) {
+				OutputStream os = c.getOutputStream();
+				os.write(body);
+				os.close();
+			}
+			long sent = System.nanoTime();
+			/*
+			 * Count the bytes both as they come off the wire and after
+			 * decompression. The checksum is calculated on the decompressed
+			 * contents, so it doesn't depend on how the server compressed it.
+			 */
+			CountingInputStream wire = new CountingInputStream(c
+					.getInputStream());
+			long firstByte = System.nanoTime();
+			CountingInputStream decoded = new CountingInputStream(
+					decodeStream(wire, c.getContentEncoding()));
+			CheckedInputStream cis = new CheckedInputStream(
+					(recording != null) ? recording.wrap(decoded) : decoded,
+					new Adler32());
+			ResponseReader rr = new ResponseReader(cis, c.getContentType());
+			try {
+				long handlerStart = System.nanoTime();
+				handler.handleResponse(rr);
+				addParseTime(System.nanoTime() - handlerStart
+						- rr.getReadTime());
+
+				/*
+				 * Closing (not disconnecting) a fully read response hands
+				 * the connection back to the keep-alive cache.
+				 */
+				byte[] skipbuf = new byte[1024];
+				while (cis.read(skipbuf) != -1)
+					;
+			} finally {
+				rr.close();
+			}
+			reusable = true;
+			if (recording != null)
+				recording.finish(c.getContentType(), firstByte, rr
+						.getReadTime());
+			pool.addTransfer(wire.getCount(), decoded.getCount());
+			/*
+			 * The listener may be called on another thread, so look at the
+			 * handshake only now that the whole response has been read. If
+			 * it still hasn't been called, the handshake isn't recorded.
+			 */
+			long tlsTime = (handshake != null) ? handshake.getTime() : -1;
+			if (tlsTime > 0)
+				connectTime = Math.max(0, connectTime - tlsTime);
+			metrics.recordRequest(dnsTime / 1000000.0,
+					connectTime / 1000000.0, (tlsTime >= 0) ? tlsTime / 1000000.0
+							: -1, (firstByte - sent) / 1000000.0, (System
+							.nanoTime() - firstByte) / 1000000.0, wire
+							.getCount());
+			return cis.getChecksum().getValue();
 		} catch (IOException e) {
+			String error = String.format("Failed to fetch url: %s (%s)", e,
+					url);
+			if (recording != null)
+				recording.fail(error);
+			throw new RuntimeException(error);
+		} finally {
+			if (!reusable && c instanceof HttpURLConnection)
+				((HttpURLConnection) c).disconnect();
+			pool.release();
+		}
+	}
+	/**
+	 * Answer a request from the recorded responses, going through the same
+	 * decoding and checksumming as a real response.
+	 */
+	private long ReplayRequest(ExchangeArchive archive, String url,
+			String form, ResponseHandler handler) {
+		ExchangeArchive.Exchange e = archive.find(url, form, password);
+		if (e == null)
 			throw new RuntimeException(String.format(
-					"Failed to fetch url: %s (%s)", e, url));
+					"No recorded response for url: %s", ExchangeArchive
+							.redact(url, password)));
+		long start = System.nanoTime();
+		archive.waitForResponse(e);
+		if (e.getError() != null)
+			throw new RuntimeException(e.getError());
+
+		long firstByte = System.nanoTime();
+		CheckedInputStream cis = new CheckedInputStream(archive
+				.openContent(e), new Adler32());
+		ResponseReader rr = new ResponseReader(cis, e.getContentType());
+		try {
+			long handlerStart = System.nanoTime();
+			handler.handleResponse(rr);
+			addParseTime(System.nanoTime() - handlerStart - rr.getReadTime());
+			byte[] skipbuf = new byte[1024];
+			while (cis.read(skipbuf) != -1)
+				;
+		} catch (IOException ex) {
+			/* Can't happen when reading from memory */
+			throw new RuntimeException(ex);
+		} finally {
+			try {
+				rr.close();
+			} catch (IOException ex) {
+			}
 		}
+		metrics.recordRequest(-1, -1, -1, (firstByte - start) / 1000000.0,
+				(System.nanoTime() - firstByte) / 1000000.0, e
+						.getContentLength());
+		return cis.getChecksum().getValue();
 	}
 
-	public void writeXmlElement(XmlSerializer xml) throws IOException {
-		xml.startTag(null, "list");
-		xml.attribute(null, "name", listname);
-		xml.attribute(null, "url", rooturl);
-		xml.attribute(null, "password", password);
-		if (override_certname != null && !override_certname.equals(""))
-			xml.attribute(null, "overridecertname", override_certname);
-		if (whitelisted_cert != null && !whitelisted_cert.equals(""))
-			xml.attribute(null, "whitelistedcert", whitelisted_cert);
-		xml.endTag(null, "list");
+
+	/**
+	 * Wrap a response stream to decompress it according to the
+	 * Content-Encoding the server sent.
+	 */
+	private static InputStream decodeStream(InputStream in, String encoding)
+			throws IOException {
+		if (encoding == null)
+			return in;
+		encoding = encoding.trim().toLowerCase();
+		if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+			return new GZIPInputStream(in);
+		if (encoding.equals("deflate")) {
+			/*
+			 * deflate is supposed to come with a zlib header, but some
+			 * servers send a raw deflate stream. Look at the first two bytes
+			 * to tell which one we got.
+			 */
+			BufferedInputStream bin = new BufferedInputStream(in);
+			bin.mark(2);
+			int cmf = bin.read();
+			int flg = bin.read();
+			bin.reset();
+			boolean zlib = (cmf != -1 && flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) + flg) % 31 == 0);
+			final Inflater inflater = new Inflater(!zlib);
+			return new InflaterInputStream(bin, inflater) {
+				/*
+				 * InflaterInputStream only ends inflaters it created itself,
+				 * so free the native memory of this one when the response
+				 * is closed.
+				 */
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inflater.end();
+					}
+				}
+			};
+		}
+		return in;
 	}
 }
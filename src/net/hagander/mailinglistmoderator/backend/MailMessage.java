@@ -15,6 +15,9 @@ package net.hagander.mailinglistmoderator.backend;
  *         This base class is simply a container for some common properties.
  */
 public abstract class MailMessage {
+	/* The contents of messages are cut off at this length */
+	public static final int MAX_CONTENT_LENGTH = 255;
+
 	private String sender;
 	private String subject;
 	private String content;
@@ -24,21 +27,39 @@ public abstract class MailMessage {
 		Accept, Reject, Defer
 	};
 
+	/**
+	 * Create a message. The content can be null for providers that load it
+	 * on demand, in which case it's set later using setContent().
+	 */
 	public MailMessage(String sender, String subject, String content) {
 		/* 
 		 * Create new strings to de-couple from large strings being returned
 		 * in regex matches. We do this here to get it in a centralized location,
 		 * even if it means we might duplicate once or twice too many.
-		 * Also, limit the length of the content to 255 bytes.
 		 */
 		this.sender = new String(sender);
 		this.subject = new String(subject);
-		if (content.length() > 255)
-			this.content = new String(content.substring(0,255));
+		if (content != null)
+			setContent(content);
+	}
+
+	/**
+	 * Set the content of the message, limiting the length to
+	 * MAX_CONTENT_LENGTH.
+	 */
+	protected void setContent(String content) {
+		if (content.length() > MAX_CONTENT_LENGTH)
+			this.content = new String(content.substring(0,MAX_CONTENT_LENGTH));
 		else
 			this.content = new String(content);
 	}
 
+	/**
+	 * Get the identifier the list server uses for this message, which stays
+	 * the same for as long as the message is in the queue.
+	 */
+	public abstract String getId();
+
 	public String getSender() {
 		return sender;
 	}
@@ -47,10 +68,23 @@ public abstract class MailMessage {
 		return subject;
 	}
 
+	/**
+	 * Get the content of the message.
+	 * 
+	 * @return the content, or null if it hasn't been loaded yet
+	 */
 	public String getContent() {
 		return content;
 	}
 
+	/**
+	 * Check if the content of the message has been loaded. If not, it can
+	 * be loaded with ListServer.LoadMessageContent().
+	 */
+	public boolean isContentLoaded() {
+		return content != null;
+	}
+
 	public void setStatus(statuslevel status) {
 		this.status = status;
 	}
@@ -0,0 +1,124 @@
+/*
+ * PollScheduler.java - This class holds the logic for how often to check each list.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Picks how often to check each list, based on how fast messages
+ *         have been arriving on it. The interval is chosen so that about
+ *         one new message is expected per check, within the given bounds.
+ *         Busy lists are then checked often, and quiet ones rarely.
+ *
+ *         The scheduler has no state of its own, it works entirely from the
+ *         ArrivalRate of each list, which is saved with the list snapshot.
+ *         The current time comes from a Clock, which can be replaced with a
+ *         simulated one.
+ */
+public class PollScheduler {
+	/**
+	 * Source of the current time.
+	 */
+	public interface Clock {
+		/**
+		 * Get the current time in milliseconds.
+		 */
+		public long now();
+	}
+
+	/**
+	 * Clock using the system time.
+	 */
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		public long now() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/* Number of new messages we want to find each time we check */
+	private static final double ARRIVALS_PER_POLL = 1.0;
+	private static final double HOUR = 60 * 60 * 1000.0;
+
+	private final long minInterval;
+	private final long maxInterval;
+	private final Clock clock;
+
+	/**
+	 * @param minInterval
+	 *            Shortest time between two checks of the same list, in
+	 *            milliseconds
+	 * @param maxInterval
+	 *            Longest time between two checks of the same list, in
+	 *            milliseconds
+	 * @param clock
+	 *            Clock to get the current time from
+	 */
+	public PollScheduler(long minInterval, long maxInterval, Clock clock) {
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.clock = clock;
+	}
+
+	/**
+	 * Get the time to wait between checks of a list.
+	 *
+	 * @param arrivals
+	 *            Arrival rate of the list
+	 * @return interval in milliseconds
+	 */
+	public long getInterval(ArrivalRate arrivals) {
+		double rate = arrivals.getRate();
+		if (rate < 0)
+			/* Nothing known yet, so find out quickly */
+			return minInterval;
+		if (rate == 0)
+			return maxInterval;
+		double interval = ARRIVALS_PER_POLL / rate * HOUR;
+		if (interval < minInterval)
+			return minInterval;
+		if (interval > maxInterval)
+			return maxInterval;
+		return (long) interval;
+	}
+
+	/**
+	 * Get the time a list should next be checked.
+	 *
+	 * @param arrivals
+	 *            Arrival rate of the list
+	 * @return time in milliseconds, which may be in the past
+	 */
+	public long getNextPoll(ArrivalRate arrivals) {
+		long last = arrivals.getLastUpdate();
+		if (last == -1)
+			return clock.now();
+		return last + getInterval(arrivals);
+	}
+
+	/**
+	 * Check if it's time to check a list. Checks are usually run on a timer
+	 * ticking at the minimum interval, so a list is considered due if it
+	 * will be before the middle of the next tick.
+	 *
+	 * @param arrivals
+	 *            Arrival rate of the list
+	 * @return true if the list should be checked now
+	 */
+	public boolean isDue(ArrivalRate arrivals) {
+		return getNextPoll(arrivals) <= clock.now() + minInterval / 2;
+	}
+
+	public long getMinInterval() {
+		return minInterval;
+	}
+
+	public long getMaxInterval() {
+		return maxInterval;
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * QueueDelta.java - This class holds the changes to a moderation queue between two refreshes.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.util.Vector;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Lists the messages that showed up in, and disappeared from, a
+ *         queue when it was refreshed. Messages that were there both before
+ *         and after are not included.
+ */
+public class QueueDelta {
+	private final Vector<MailMessage> added;
+	private final Vector<MailMessage> removed;
+
+	public QueueDelta(Vector<MailMessage> added, Vector<MailMessage> removed) {
+		this.added = added;
+		this.removed = removed;
+	}
+
+	/**
+	 * Get the messages that are new since the last refresh.
+	 */
+	public Vector<MailMessage> getAdded() {
+		return added;
+	}
+
+	/**
+	 * Get the messages that are gone since the last refresh, typically
+	 * because they have been moderated.
+	 */
+	public Vector<MailMessage> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Check if the refresh changed anything at all.
+	 */
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty();
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * QueueSnapshot.java - This class holds an on-disk copy of a moderation queue.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Vector;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Stores the last enumerated contents of a queue, so they can be
+ *         shown right away the next time the program starts, while the
+ *         queue is being refreshed from the server.
+ *
+ *         The file is a simple binary format: a header, the status string of
+ *         the list, its arrival rate and then the messages, with all strings
+ *         stored as a length followed by UTF-8 bytes. It's read back by
+ *         mapping it into memory.
+ */
+public class QueueSnapshot {
+	private static final int MAGIC = 0x4d4c4d51; /* MLMQ */
+	private static final int VERSION = 2;
+	/* Four strings, each at least a length */
+	private static final int MIN_ENTRY_SIZE = 16;
+
+	/**
+	 * A single message as stored in the snapshot.
+	 */
+	public static class Entry {
+		public final String id;
+		public final String sender;
+		public final String subject;
+		/* null if the content was not loaded */
+		public final String content;
+
+		Entry(String id, String sender, String subject, String content) {
+			this.id = id;
+			this.sender = sender;
+			this.subject = subject;
+			this.content = content;
+		}
+	}
+
+	private final String status;
+	private final long arrivalsUpdated;
+	private final double arrivalRate;
+	private final Vector<Entry> entries;
+
+	private QueueSnapshot(String status, long arrivalsUpdated,
+			double arrivalRate, Vector<Entry> entries) {
+		this.status = status;
+		this.arrivalsUpdated = arrivalsUpdated;
+		this.arrivalRate = arrivalRate;
+		this.entries = entries;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public long getArrivalsUpdated() {
+		return arrivalsUpdated;
+	}
+
+	public double getArrivalRate() {
+		return arrivalRate;
+	}
+
+	public Vector<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Write a snapshot of a queue to a file.
+	 *
+	 * @param file
+	 *            File to write
+	 * @param status
+	 *            Status string of the list
+	 * @param arrivals
+	 *            Arrival rate of the list
+	 * @param messages
+	 *            Messages in the queue
+	 */
+	public static void write(File file, String status, ArrivalRate arrivals,
+			Vector<MailMessage> messages) throws IOException {
+		/*
+		 * Write to a new file and rename, so a crash never leaves half a file.
+		 * The background service and the activity may each have their own
+		 * object for the same list, so every write gets a file of its own.
+		 */
+		File tmpfile = File.createTempFile(file.getName(), ".tmp", file
+				.getParentFile());
+		boolean renamed = false;
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmpfile)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeString(out, status);
+				out.writeLong(arrivals.getLastUpdate());
+				out.writeDouble(arrivals.getRate());
+				synchronized (messages) {
+					out.writeInt(messages.size());
+					for (int i = 0; i < messages.size(); i++) {
+						MailMessage m = messages.get(i);
+						writeString(out, m.getId());
+						writeString(out, m.getSender());
+						writeString(out, m.getSubject());
+						writeString(out, m.getContent());
+					}
+				}
+			} finally {
+				out.close();
+			}
+			renamed = tmpfile.renameTo(file);
+			if (!renamed)
+				throw new IOException("Could not rename snapshot file");
+		} finally {
+			if (!renamed)
+				tmpfile.delete();
+		}
+	}
+
+	/**
+	 * Read a snapshot from a file.
+	 *
+	 * @param file
+	 *            File to read
+	 * @return the snapshot, or null if there is no valid snapshot in the
+	 *         file
+	 */
+	public static QueueSnapshot read(File file) throws IOException {
+		if (!file.exists())
+			return null;
+
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+				return null;
+			String status = readString(buf);
+			long arrivalsUpdated = buf.getLong();
+			double arrivalRate = buf.getDouble();
+			int count = buf.getInt();
+			if (count < 0 || count > buf.remaining() / MIN_ENTRY_SIZE)
+				/* Corrupt, don't try to allocate room for it */
+				return null;
+			Vector<Entry> entries = new Vector<Entry>(count);
+			for (int i = 0; i < count; i++) {
+				entries.add(new Entry(readString(buf), readString(buf),
+						readString(buf), readString(buf)));
+			}
+			return new QueueSnapshot(status, arrivalsUpdated, arrivalRate,
+					entries);
+		} catch (BufferUnderflowException e) {
+			/* Truncated file */
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Strings are stored as their length in bytes followed by the UTF-8
+	 * bytes. A length of -1 means null.
+	 */
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(MappedByteBuffer buf)
+			throws UnsupportedEncodingException {
+		int len = buf.getInt();
+		if (len == -1)
+			return null;
+		if (len < 0 || len > buf.remaining())
+			throw new BufferUnderflowException();
+		byte[] b = new byte[len];
+		buf.get(b);
+		return new String(b, "UTF-8");
+	}
+}
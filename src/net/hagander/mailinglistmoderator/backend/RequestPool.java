@@ -0,0 +1,156 @@
+/*
+ * RequestPool.java - This class holds a shared pool for running individual requests in parallel.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Runs batches of single requests (such as one tokeninfo fetch per
+ *         message) in parallel on a small shared set of threads. This is kept
+ *         separate from the FetchScheduler, since the code submitting the
+ *         batch is usually itself running on one of the FetchScheduler
+ *         workers and waits for the batch to finish.
+ *
+ *         The tasks in here must never wait for other tasks in the pool.
+ */
+public class RequestPool {
+	/* Total number of threads running requests, across all lists */
+	public static final int MAX_THREADS = 8;
+
+	private static ExecutorService executor = null;
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(MAX_THREADS,
+					new ThreadFactory() {
+						private int counter = 0;
+
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r, String.format(
+									"RequestWorker-%d", ++counter));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return executor;
+	}
+
+	/**
+	 * Interface for being told about progress while a batch runs.
+	 */
+	public interface CompletionListener {
+		/**
+		 * Called from the worker thread each time a task finishes, whether
+		 * it succeeded or not. Calls for a batch are made one at a time, with
+		 * completed going up by one each time.
+		 *
+		 * @param completed
+		 *            Number of tasks in the batch finished so far
+		 */
+		public void taskCompleted(int completed);
+	}
+
+	/**
+	 * Run all tasks with at most the given number running at the same time,
+	 * and wait for them to finish.
+	 *
+	 * If any task throws a RuntimeException, the first one (in task order)
+	 * is re-thrown here once all tasks are done.
+	 *
+	 * @param tasks
+	 *            The tasks to run
+	 * @param parallelism
+	 *            Maximum number of tasks from this batch to run at once
+	 * @return the results of the tasks, in the same order as the tasks
+	 */
+	public static <T> Vector<T> runAll(Vector<Callable<T>> tasks,
+			int parallelism) {
+		return runAll(tasks, parallelism, null);
+	}
+
+	/**
+	 * Run all tasks like runAll(tasks, parallelism), reporting each task
+	 * as it finishes.
+	 *
+	 * @param tasks
+	 *            The tasks to run
+	 * @param parallelism
+	 *            Maximum number of tasks from this batch to run at once
+	 * @param listener
+	 *            Listener to be told about finished tasks, or null
+	 * @return the results of the tasks, in the same order as the tasks
+	 */
+	public static <T> Vector<T> runAll(Vector<Callable<T>> tasks,
+			int parallelism, final CompletionListener listener) {
+		final Semaphore slots = new Semaphore(parallelism);
+		final AtomicInteger completed = new AtomicInteger(0);
+		Vector<Future<T>> futures = new Vector<Future<T>>(tasks.size());
+		ExecutorService ex = getExecutor();
+
+		try {
+			for (int i = 0; i < tasks.size(); i++) {
+				final Callable<T> task = tasks.get(i);
+				slots.acquire();
+				futures.add(ex.submit(new Callable<T>() {
+					public T call() throws Exception {
+						try {
+							return task.call();
+						} finally {
+							/*
+							 * Report before letting the next task start, and
+							 * one task at a time, so the counts are seen in
+							 * order.
+							 */
+							synchronized (completed) {
+								int done = completed.incrementAndGet();
+								if (listener != null)
+									listener.taskCompleted(done);
+							}
+							slots.release();
+						}
+					}
+				}));
+			}
+
+			Vector<T> results = new Vector<T>(tasks.size());
+			RuntimeException failure = null;
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						if (e.getCause() instanceof RuntimeException)
+							failure = (RuntimeException) e.getCause();
+						else
+							failure = new RuntimeException(e.getCause());
+					}
+					results.add(null);
+				}
+			}
+			if (failure != null)
+				throw failure;
+			return results;
+		} catch (InterruptedException e) {
+			for (int i = 0; i < futures.size(); i++)
+				futures.get(i).cancel(true);
+			throw new RuntimeException("Interrupted while running requests");
+		}
+	}
+}
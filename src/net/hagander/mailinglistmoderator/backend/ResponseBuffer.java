@@ -0,0 +1,148 @@
+/*
+ * ResponseBuffer.java - This class holds a pooled character buffer for a complete response.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Vector;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Holds the complete contents of a response, read straight into a
+ *         character array that is reused between requests. The contents are
+ *         available as a CharSequence, which the regular expressions can
+ *         match against without making a String copy of the page first.
+ *
+ *         Line endings are normalized to a single newline, the same way
+ *         they were when pages were read line by line.
+ *
+ *         The buffer must be released once whatever is using it is done,
+ *         after which it's no longer valid.
+ */
+class ResponseBuffer implements CharSequence {
+	private static final int INITIAL_SIZE = 16384;
+	/* Always have room for at least this much before reading */
+	private static final int READ_SIZE = 4096;
+	/*
+	 * Don't keep huge buffers around after an unusually big page, and don't
+	 * keep more than a few.
+	 */
+	private static final int MAX_POOLED_SIZE = 1024 * 1024;
+	private static final int MAX_POOLED = 4;
+
+	private static final Vector<char[]> pool = new Vector<char[]>();
+
+	private char[] buf;
+	private int length = 0;
+	private boolean lastWasCR = false;
+
+	public ResponseBuffer() {
+		synchronized (pool) {
+			buf = pool.isEmpty() ? new char[INITIAL_SIZE] : pool.remove(pool
+					.size() - 1);
+		}
+	}
+
+	/**
+	 * Read everything from a reader into the buffer.
+	 */
+	public void readFrom(Reader r) throws IOException {
+		while (true) {
+			ensureCapacity(length + READ_SIZE);
+			int n = r.read(buf, length, buf.length - length);
+			if (n == -1)
+				break;
+
+			/*
+			 * Normalize line endings in place, which never makes the
+			 * contents longer.
+			 */
+			int end = length + n;
+			int out = length;
+			for (int i = length; i < end; i++) {
+				char c = buf[i];
+				if (c == '\r') {
+					buf[out++] = '\n';
+					lastWasCR = true;
+					continue;
+				}
+				if (c == '\n' && lastWasCR) {
+					/* Second half of a CRLF, already written */
+					lastWasCR = false;
+					continue;
+				}
+				lastWasCR = false;
+				buf[out++] = c;
+			}
+			length = out;
+		}
+		/* readLine() added a newline after the last line, even if missing */
+		if (length > 0 && buf[length - 1] != '\n') {
+			ensureCapacity(length + 1);
+			buf[length++] = '\n';
+		}
+	}
+
+	private void ensureCapacity(int size) {
+		if (size <= buf.length)
+			return;
+		char[] n = new char[Math.max(size, buf.length * 2)];
+		System.arraycopy(buf, 0, n, 0, length);
+		buf = n;
+	}
+
+	/**
+	 * Get a reader over the contents, without copying them.
+	 */
+	public Reader getReader() {
+		return new CharArrayReader(buf, 0, length);
+	}
+
+	/**
+	 * Give the buffer back to the pool. The contents must not be used after
+	 * this.
+	 */
+	public void release() {
+		if (buf == null)
+			return;
+		synchronized (pool) {
+			if (buf.length <= MAX_POOLED_SIZE && pool.size() < MAX_POOLED)
+				pool.add(buf);
+		}
+		buf = null;
+		length = 0;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException();
+		return buf[index];
+	}
+
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Get part of the contents. This makes a copy, so it stays valid after
+	 * the buffer is released.
+	 */
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end)
+			throw new IndexOutOfBoundsException();
+		return new String(buf, start, end - start);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, length);
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * ResponseReader.java - This class holds a reader decoding responses using pooled buffers.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Vector;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Decodes a response stream into characters, like an
+ *         InputStreamReader, but takes its byte and character buffers from a
+ *         pool that is shared between all requests instead of allocating new
+ *         ones every time. The buffers go back to the pool when the reader is
+ *         closed.
+ */
+class ResponseReader extends Reader {
+	private static final int BUFFER_SIZE = 8192;
+	/* Never keep more buffers than this many requests can use at once */
+	private static final int MAX_POOLED = 8;
+
+	private static final Vector<ByteBuffer> bytePool = new Vector<ByteBuffer>();
+	private static final Vector<CharBuffer> charPool = new Vector<CharBuffer>();
+
+	private final InputStream in;
+	private final CharsetDecoder decoder;
+	private ByteBuffer bytes;
+	private CharBuffer chars;
+	private boolean eof = false;
+	private boolean flushed = false;
+	/* Time spent waiting for the underlying stream */
+	private long readNanos = 0;
+
+	/**
+	 * Create a reader for a response.
+	 *
+	 * @param in
+	 *            Stream to read bytes from
+	 * @param contentType
+	 *            The Content-Type header of the response, which holds the
+	 *            charset to decode with. If it's missing, or the charset is
+	 *            unknown, the platform default is used.
+	 */
+	public ResponseReader(InputStream in, String contentType) {
+		this.in = in;
+		this.decoder = charsetFromContentType(contentType).newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		synchronized (bytePool) {
+			bytes = bytePool.isEmpty() ? ByteBuffer.allocate(BUFFER_SIZE)
+					: bytePool.remove(bytePool.size() - 1);
+		}
+		synchronized (charPool) {
+			chars = charPool.isEmpty() ? CharBuffer.allocate(BUFFER_SIZE)
+					: charPool.remove(charPool.size() - 1);
+		}
+		/* Both start out empty, ready to be read from */
+		bytes.clear();
+		bytes.flip();
+		chars.clear();
+		chars.flip();
+	}
+
+	/**
+	 * Get the charset given in a Content-Type header.
+	 *
+	 * @param contentType
+	 *            The header, such as "text/html; charset=utf-8". May be null.
+	 * @return the charset, or the platform default if there is none
+	 */
+	static Charset charsetFromContentType(String contentType) {
+		if (contentType != null) {
+			String[] params = contentType.split(";");
+			for (int i = 1; i < params.length; i++) {
+				String p = params[i].trim();
+				if (!p.toLowerCase().startsWith("charset="))
+					continue;
+				String name = p.substring(8).trim();
+				if (name.startsWith("\"") && name.endsWith("\"")
+						&& name.length() > 1)
+					name = name.substring(1, name.length() - 1);
+				try {
+					return Charset.forName(name);
+				} catch (IllegalCharsetNameException e) {
+				} catch (UnsupportedCharsetException e) {
+				}
+			}
+		}
+		return Charset.defaultCharset();
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (chars == null)
+			throw new IOException("Reader is closed");
+		if (len == 0)
+			return 0;
+		if (!chars.hasRemaining() && !fill())
+			return -1;
+		int n = Math.min(len, chars.remaining());
+		chars.get(cbuf, off, n);
+		return n;
+	}
+
+	/**
+	 * Decode more characters into the character buffer.
+	 *
+	 * @return false at the end of the stream
+	 */
+	private boolean fill() throws IOException {
+		chars.clear();
+		while (chars.position() == 0) {
+			if (flushed)
+				break;
+			CoderResult r = decoder.decode(bytes, chars, eof);
+			if (r.isError())
+				r.throwException();
+			if (r.isOverflow())
+				break;
+			/* Underflow, so we need more bytes */
+			if (eof) {
+				decoder.flush(chars);
+				flushed = true;
+				break;
+			}
+			bytes.compact();
+			long start = System.nanoTime();
+			int n = in.read(bytes.array(), bytes.arrayOffset()
+					+ bytes.position(), bytes.remaining());
+			readNanos += System.nanoTime() - start;
+			if (n == -1)
+				eof = true;
+			else
+				bytes.position(bytes.position() + n);
+			bytes.flip();
+		}
+		chars.flip();
+		return chars.hasRemaining();
+	}
+
+	/**
+	 * Get the time spent reading (and decompressing) from the underlying
+	 * stream, as opposed to the time spent by whoever reads from us.
+	 *
+	 * @return the time in nanoseconds
+	 */
+	public long getReadTime() {
+		return readNanos;
+	}
+
+	/**
+	 * Close the stream and give the buffers back to the pool.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (chars == null)
+			return;
+		synchronized (bytePool) {
+			if (bytePool.size() < MAX_POOLED)
+				bytePool.add(bytes);
+		}
+		synchronized (charPool) {
+			if (charPool.size() < MAX_POOLED)
+				charPool.add(chars);
+		}
+		bytes = null;
+		chars = null;
+		in.close();
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * SSLContextCache.java - This class holds the SSL setup for servers with non-standard certificates.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.math.BigInteger;
+import java.security.KeyManagementException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Holds one SSLContext (and its socket factory) and one
+ *         HostnameVerifier for each combination of host, whitelisted
+ *         certificate fingerprint and overridden certificate name, for the
+ *         lifetime of the process.
+ *
+ *         Reusing the same context means the TLS session cache it owns
+ *         survives between requests, so connections after the first one can
+ *         resume the session instead of doing a full handshake. Reusing the
+ *         same socket factory is also what allows HttpURLConnection to hand
+ *         out kept-alive connections, since it only reuses connections created
+ *         by the same factory.
+ *
+ *         If the configuration of a list changes, it will simply map to a new
+ *         entry.
+ *
+ *         The socket factories created here are wrapped in a
+ *         TimingSSLSocketFactory, so the TLS handshake can be measured. Lists
+ *         without overrides use the default socket factory as it is, and have
+ *         no TLS timings.
+ */
+public class SSLContextCache {
+	private static final Pattern DNPattern = Pattern.compile("^CN=([^,]+),", Pattern.CASE_INSENSITIVE);
+
+	private static final HashMap<String, SSLContextCache> cache = new HashMap<String, SSLContextCache>();
+
+	private final SSLSocketFactory socketFactory;
+	private final HostnameVerifier hostnameVerifier;
+
+	private SSLContextCache(String override_certname, String whitelisted_cert) {
+		if (override_certname != null && !override_certname.equals(""))
+			hostnameVerifier = createHostnameVerifier(override_certname);
+		else
+			hostnameVerifier = null;
+
+		if (whitelisted_cert != null && !whitelisted_cert.equals(""))
+			socketFactory = new TimingSSLSocketFactory(
+					createSocketFactory(whitelisted_cert));
+		else
+			socketFactory = null;
+	}
+
+	/**
+	 * Set up a connection to use the cached hostname verifier and socket
+	 * factory for this configuration, creating them if this is the first time
+	 * it's used. Connections that need neither are left alone.
+	 *
+	 * @param sslconn
+	 *            The connection to configure
+	 * @param override_certname
+	 *            SSL certificate name to accept
+	 * @param whitelisted_cert
+	 *            SSL certificate fingerprint to whitelist
+	 */
+	public static void configure(HttpsURLConnection sslconn,
+			String override_certname, String whitelisted_cert) {
+		boolean override = (override_certname != null && !override_certname.equals(""));
+		boolean whitelist = (whitelisted_cert != null && !whitelisted_cert.equals(""));
+		if (!override && !whitelist)
+			return;
+
+		String key = String.format("%s|%s|%s", sslconn.getURL().getHost(),
+				whitelist ? whitelisted_cert : "",
+				override ? override_certname : "");
+		SSLContextCache entry;
+		synchronized (cache) {
+			entry = cache.get(key);
+			if (entry == null) {
+				entry = new SSLContextCache(override_certname, whitelisted_cert);
+				cache.put(key, entry);
+			}
+		}
+
+		if (entry.hostnameVerifier != null)
+			sslconn.setHostnameVerifier(entry.hostnameVerifier);
+		if (entry.socketFactory != null)
+			sslconn.setSSLSocketFactory(entry.socketFactory);
+	}
+
+	/**
+	 * Create a hostname verifier that accepts the certificate as long as its
+	 * CN is the overridden name.
+	 */
+	private static HostnameVerifier createHostnameVerifier(final String override_certname) {
+		return new HostnameVerifier() {
+			public boolean verify(String hostname, SSLSession session) {
+				/* For each certificate, check */
+				X509Certificate cert;
+				try {
+					cert = (X509Certificate)session.getPeerCertificates()[0];
+				}
+				catch (SSLPeerUnverifiedException e) {
+					throw new RuntimeException(String.format(
+							"Failed to verify peer for host: %s (%s)", e, hostname));
+				}
+				Matcher m = DNPattern.matcher(cert.getSubjectDN().getName());
+				if (!m.find()) {
+					throw new RuntimeException(String.format(
+							"Could not extract hostname from '%s' for host %s", cert.getSubjectDN(), hostname));
+				}
+				String sslname = m.group(1);
+				if (sslname.equals(override_certname)) {
+					/* Matched the overridden certname, so allow this connection */
+					return true;
+				}
+
+				/*
+				 * Could return false here, but that won't show as
+				 * useful error message, so throw RuntimeEception
+				 * instead
+				 */
+				throw new RuntimeException(String.format(
+						"Certificate hostname '%s' does not match expected hostname '%s'", sslname, override_certname));
+			}
+		};
+	}
+
+	/**
+	 * Create a socket factory that trusts exactly the certificate with the
+	 * whitelisted fingerprint.
+	 */
+	private static SSLSocketFactory createSocketFactory(final String whitelisted_cert) {
+		SSLContext context;
+		try {
+			context = SSLContext.getInstance("TLS");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Could not find TLS context!");
+		}
+		try {
+			context.init(null,
+					new X509TrustManager[] { new X509TrustManager() {
+						public void checkClientTrusted(
+								X509Certificate[] chain, String authType)
+								throws CertificateException {
+						}
+
+						public void checkServerTrusted(
+								X509Certificate[] chain, String authType)
+								throws CertificateException {
+
+							MessageDigest md;
+							try {
+								md = MessageDigest.getInstance("SHA-1");
+							} catch (NoSuchAlgorithmException e) {
+								throw new RuntimeException("Could not find SHA-1 digest");
+							}
+							md.update(chain[0].getEncoded());
+							byte[] digest = md.digest();
+							BigInteger bi = new BigInteger(1, digest);
+						    String fingerprint = String.format("%0" + (digest.length << 1) + "X", bi);
+
+						    if (!fingerprint.equals(whitelisted_cert)) {
+						    	throw new CertificateException("Certificate fingerprint does not match the configured one!");
+						    }
+
+						    /* Otherwise, if it matches, we said override, so trust everything */
+						}
+
+						public X509Certificate[] getAcceptedIssuers() {
+							return new X509Certificate[0];
+						}
+					} }, null);
+		} catch (KeyManagementException e) {
+			throw new RuntimeException(String.format("Unable to set up key management: %s", e.toString()));
+		}
+		return context.getSocketFactory();
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * ServerIndex.java - This class holds the lists in the order they are shown in.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Vector;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Keeps the lists ordered the way the main screen shows them: lists
+ *         that have been populated first, with the most messages first, and
+ *         then by name. Lists that haven't been populated yet come last,
+ *         sorted by name.
+ *
+ *         Lists are only added by setServers(). When a list has been
+ *         refreshed, update() moves just that list to its new place, instead
+ *         of sorting all of them again. Each list is stored under a key
+ *         holding the values it was sorted on at the time, since the list
+ *         itself changes under us.
+ *
+ *         The UI reads the order through snapshot(), which returns an array
+ *         that is never changed once published. A new one is only built when
+ *         something has been updated since the last one.
+ */
+public class ServerIndex {
+	private final TreeMap<Key, ListServer> ordered = new TreeMap<Key, ListServer>();
+	private final HashMap<ListServer, Key> keys = new HashMap<ListServer, Key>();
+
+	/* Breaks ties between lists with the same name */
+	private long serial = 0;
+
+	private boolean changed = false;
+	private ListServer[] snapshot = new ListServer[0];
+
+	/**
+	 * The values a list was sorted on when it was added or last updated.
+	 */
+	private static class Key implements Comparable<Key> {
+		private final boolean populated;
+		private final int count;
+		private final String name;
+		private final long serial;
+
+		public Key(ListServer s, long serial) {
+			this.populated = s.isPopulated();
+			this.count = populated ? s.count() : 0;
+			this.name = s.getName();
+			this.serial = serial;
+		}
+
+		public int compareTo(Key other) {
+			if (populated != other.populated)
+				// Populated lists go before the ones that aren't
+				return populated ? -1 : 1;
+			if (count != other.count)
+				// More messages go first
+				return (count > other.count) ? -1 : 1;
+			int c = name.compareTo(other.name);
+			if (c != 0)
+				return c;
+			if (serial != other.serial)
+				return (serial < other.serial) ? -1 : 1;
+			return 0;
+		}
+	}
+
+	/**
+	 * Replace all the lists in the index.
+	 */
+	public synchronized void setServers(Vector<ListServer> servers) {
+		ordered.clear();
+		keys.clear();
+		synchronized (servers) {
+			for (int i = 0; i < servers.size(); i++)
+				put(servers.get(i));
+		}
+		changed = true;
+	}
+
+	/**
+	 * Move a list to its place in the order after it has changed. Lists that
+	 * aren't in the index, such as one removed while it was being refreshed,
+	 * are ignored.
+	 */
+	public synchronized void update(ListServer s) {
+		Key old = keys.get(s);
+		if (old == null)
+			return;
+		Key key = new Key(s, old.serial);
+		if (key.compareTo(old) == 0)
+			// Same place as before
+			return;
+		ordered.remove(old);
+		ordered.put(key, s);
+		keys.put(s, key);
+		changed = true;
+	}
+
+	/**
+	 * Remove a list from the index.
+	 */
+	public synchronized void remove(ListServer s) {
+		Key old = keys.remove(s);
+		if (old != null) {
+			ordered.remove(old);
+			changed = true;
+		}
+	}
+
+	private void put(ListServer s) {
+		Key key = new Key(s, serial++);
+		ordered.put(key, s);
+		keys.put(s, key);
+	}
+
+	/**
+	 * Get the lists in order. The returned array must not be modified.
+	 *
+	 * @return the lists, in the order they should be shown
+	 */
+	public synchronized ListServer[] snapshot() {
+		if (changed) {
+			snapshot = ordered.values().toArray(new ListServer[ordered.size()]);
+			changed = false;
+		}
+		return snapshot;
+	}
+
+	public synchronized int size() {
+		return ordered.size();
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * TimingSSLSocketFactory.java - This class holds a socket factory measuring TLS handshakes.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Wraps another SSL socket factory, and times the TLS handshake of
+ *         each socket it creates, from when the socket is created until the
+ *         handshake completes. The handshake itself is left to the
+ *         connection, which sets up hostname verification and SNI on the
+ *         socket before starting it.
+ *
+ *         The last socket created is kept per thread, since the request that
+ *         caused it runs on the same thread. The listener may be called on a
+ *         different thread once the handshake is done, so the time is read
+ *         from the Handshake when the request has finished.
+ */
+class TimingSSLSocketFactory extends SSLSocketFactory {
+	private static final ThreadLocal<Handshake> lastHandshake = new ThreadLocal<Handshake>();
+
+	private final SSLSocketFactory delegate;
+
+	/**
+	 * The handshake of a socket created by this factory.
+	 */
+	public static class Handshake implements HandshakeCompletedListener {
+		private final long start = System.nanoTime();
+		private volatile long time = -1;
+
+		public void handshakeCompleted(HandshakeCompletedEvent event) {
+			/* Only the first one, not any renegotiation */
+			if (time < 0)
+				time = System.nanoTime() - start;
+		}
+
+		/**
+		 * @return the duration of the handshake in nanoseconds, or -1 if it
+		 *         hasn't completed
+		 */
+		public long getTime() {
+			return time;
+		}
+	}
+
+	public TimingSSLSocketFactory(SSLSocketFactory delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Get the handshake of the last socket created on this thread, and
+	 * forget it.
+	 *
+	 * @return the handshake, or null if no socket was created
+	 */
+	public static Handshake takeHandshake() {
+		Handshake h = lastHandshake.get();
+		lastHandshake.set(null);
+		return h;
+	}
+
+	private Socket watch(Socket s) {
+		if (s instanceof SSLSocket) {
+			Handshake h = new Handshake();
+			((SSLSocket) s).addHandshakeCompletedListener(h);
+			lastHandshake.set(h);
+		}
+		return s;
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port,
+			boolean autoClose) throws IOException {
+		return watch(delegate.createSocket(s, host, port, autoClose));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return watch(delegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost,
+			int localPort) throws IOException {
+		return watch(delegate.createSocket(host, port, localHost, localPort));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return watch(delegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port,
+			InetAddress localAddress, int localPort) throws IOException {
+		return watch(delegate.createSocket(address, port, localAddress,
+				localPort));
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return delegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return delegate.getSupportedCipherSuites();
+	}
+}
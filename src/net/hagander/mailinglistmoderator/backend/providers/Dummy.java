@@ -7,6 +7,8 @@
  */
 package net.hagander.mailinglistmoderator.backend.providers;
 
+import java.util.HashSet;
+import java.util.Random;
 import java.util.Vector;
 
 import net.hagander.mailinglistmoderator.backend.ListServer;
@@ -17,10 +19,177 @@ import net.hagander.mailinglistmoderator.backend.MailMessage.statuslevel;
  * 
  * @author Magnus Hagander <magnus@hagander.net>
  * 
+ *         A list server that doesn't exist, generating its queue instead of
+ *         fetching it. It's configured with parameters in the URL, such as
+ *         dummy:messages=50000&senders=100&latency=200-800&seed=7, which
+ *         makes it possible to try out the UI and the scheduler with queues
+ *         of any size without a real server.
+ *
+ *         Parameters (all optional):
+ *
+ *         messages - number of messages in the queue at first (default 5)
+ *         arrivals - number of new messages on each refresh (default 0)
+ *         senders - number of different senders (default 3)
+ *         subjects - number of different subjects (default 10)
+ *         bodysize - length of each message body (default 60)
+ *         latency - time each refresh takes in milliseconds, as a fixed
+ *         value N, a uniform range A-B, or an exponential distribution with
+ *         a given mean as exp:N (default 0-4000)
+ *         failrate - fraction of refreshes failing (default 0.2)
+ *         applyfailrate - fraction of moderations failing (default 0)
+ *         applydelay - time to moderate, per message in individual mode and
+ *         per batch in batch mode (default 750)
+ *         mode - individual or batch moderation (default individual)
+ *         seed - seed for all the random choices (default 1)
+ *
+ *         Everything random comes from a generator with the given seed, so
+ *         two runs with the same parameters and the same sequence of
+ *         refreshes and moderations behave the same. Moderated messages are
+ *         removed from the generated queue.
  */
 public class Dummy extends ListServer {
+	private int initialMessages = 5;
+	private int arrivalCount = 0;
+	private int senderCount = 3;
+	private int subjectCount = 10;
+	private int bodySize = 60;
+	private long latencyMin = 0;
+	private long latencyMax = 4000;
+	private double latencyMean = -1;
+	private double failRate = 0.2;
+	private double applyFailRate = 0;
+	private long applyDelay = 750;
+	private boolean batchMode = false;
+	private long seed = 1;
+
+	/* Set if the URL can't be parsed, and then returned on refresh */
+	private String configError = null;
+
+	private final Random random;
+	/* Messages on the "server" are numbered 0 to nextId-1, minus the moderated ones */
+	private int nextId;
+	private final HashSet<Integer> moderated = new HashSet<Integer>();
+	private String body;
+
 	public Dummy(String name, String rooturl, String password) {
 		super(name, rooturl, password, null, null);
+		parseUrl(rooturl);
+		random = new Random(seed);
+		nextId = initialMessages;
+		body = makeBody(bodySize);
+	}
+
+	/**
+	 * Read the parameters from the URL.
+	 */
+	private void parseUrl(String url) {
+		String params = url.substring("dummy:".length());
+		if (params.startsWith("//"))
+			params = params.substring(2);
+		if (params.startsWith("?"))
+			params = params.substring(1);
+		if (params.length() == 0)
+			return;
+
+		String[] pairs = params.split("&");
+		for (int i = 0; i < pairs.length; i++) {
+			int eq = pairs[i].indexOf('=');
+			String key = (eq < 0) ? pairs[i] : pairs[i].substring(0, eq);
+			String value = (eq < 0) ? "" : pairs[i].substring(eq + 1);
+			try {
+				if (key.equals("messages"))
+					initialMessages = Integer.parseInt(value);
+				else if (key.equals("arrivals"))
+					arrivalCount = Integer.parseInt(value);
+				else if (key.equals("senders"))
+					senderCount = Math.max(1, Integer.parseInt(value));
+				else if (key.equals("subjects"))
+					subjectCount = Math.max(1, Integer.parseInt(value));
+				else if (key.equals("bodysize"))
+					bodySize = Integer.parseInt(value);
+				else if (key.equals("latency"))
+					parseLatency(value);
+				else if (key.equals("failrate"))
+					failRate = Double.parseDouble(value);
+				else if (key.equals("applyfailrate"))
+					applyFailRate = Double.parseDouble(value);
+				else if (key.equals("applydelay"))
+					applyDelay = Long.parseLong(value);
+				else if (key.equals("mode")) {
+					if (value.equals("batch"))
+						batchMode = true;
+					else if (value.equals("individual"))
+						batchMode = false;
+					else
+						throw new NumberFormatException();
+				} else if (key.equals("seed"))
+					seed = Long.parseLong(value);
+				else if (configError == null)
+					configError = String.format(
+							"Unknown dummy parameter '%s'", key);
+			} catch (NumberFormatException e) {
+				if (configError == null)
+					configError = String.format(
+							"Invalid value '%s' for dummy parameter '%s'",
+							value, key);
+			}
+		}
+	}
+
+	private void parseLatency(String value) {
+		if (value.startsWith("exp:")) {
+			latencyMean = Double.parseDouble(value.substring(4));
+			return;
+		}
+		latencyMean = -1;
+		int dash = value.indexOf('-');
+		if (dash < 0) {
+			latencyMin = latencyMax = Long.parseLong(value);
+		} else {
+			latencyMin = Long.parseLong(value.substring(0, dash));
+			latencyMax = Long.parseLong(value.substring(dash + 1));
+		}
+		if (latencyMax < latencyMin)
+			throw new NumberFormatException();
+	}
+
+	private static String makeBody(int size) {
+		String line = "Contents of a dummy message\n";
+		StringBuilder sb = new StringBuilder(size);
+		while (sb.length() < size)
+			sb.append(line);
+		sb.setLength(size);
+		return sb.toString();
+	}
+
+	/**
+	 * Wait for a time picked from the latency distribution.
+	 */
+	private void simulateLatency() {
+		long millis;
+		synchronized (random) {
+			if (latencyMean >= 0)
+				millis = (long) (-latencyMean * Math.log(1 - random.nextDouble()));
+			else
+				millis = latencyMin
+						+ (long) (random.nextDouble() * (latencyMax - latencyMin));
+		}
+		sleep(millis);
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private boolean randomFailure(double rate) {
+		synchronized (random) {
+			return random.nextDouble() < rate;
+		}
 	}
 
 	/**
@@ -28,30 +197,41 @@ public class Dummy extends ListServer {
 	 */
 	@Override
 	protected Vector<MailMessage> EnumerateMessages() {
-		Vector<MailMessage> messages = new Vector<MailMessage>();
+		if (configError != null)
+			throw new RuntimeException(configError);
 
-		// One in 5 will cause an error
-		if (Math.random() > 0.8)
+		// Take some time, to emulate a real run
+		simulateLatency();
+		if (randomFailure(failRate))
 			throw new RuntimeException("Something bad happened.");
 
-		for (int i = 0; i < Math.random() * 8 + 2; i++) {
-			messages.add(new DummyMessage());
-		}
-		
-		// Now let's also make it take some time, to emulate a real run
-		try {
-			Thread.sleep((long) (1000 * Math.random()*4));
-		} catch (InterruptedException e) {
+		Vector<MailMessage> messages;
+		synchronized (moderated) {
+			nextId += arrivalCount;
+			messages = new Vector<MailMessage>(nextId - moderated.size());
+			for (int i = 0; i < nextId; i++) {
+				if (!moderated.contains(i))
+					messages.add(new DummyMessage(i));
+			}
 		}
 		return messages;
 	}
 
 	/**
-	 * This dummy provider will implement individual message moderation.
+	 * Recreate a message from a snapshot.
+	 */
+	@Override
+	protected MailMessage RestoreMessage(String id, String sender,
+			String subject, String content) {
+		return new DummyMessage(Integer.parseInt(id), sender, subject, content);
+	}
+
+	/**
+	 * The dummy provider can pretend to do either.
 	 */
 	@Override
 	public boolean doesIndividualModeration() {
-		return true;
+		return !batchMode;
 	}
 
 	/**
@@ -71,18 +251,47 @@ public class Dummy extends ListServer {
 				msglist.add(msg);
 			}
 		}
-		callbacks.SetMessageCount(msglist.size());
+		if (msglist.size() == 0)
+			return false;
 
+		if (batchMode) {
+			callbacks.SetStatusMessage(String.format(
+					"Moderating %d messages...", msglist.size()));
+			sleep(applyDelay);
+			if (randomFailure(applyFailRate)) {
+				callbacks.ShowError(String.format(
+						"Failed to moderate %d messages", msglist.size()));
+				return false;
+			}
+			synchronized (moderated) {
+				for (int i = 0; i < msglist.size(); i++)
+					moderated.add(msglist.get(i).id);
+			}
+			return true;
+		}
+
+		callbacks.SetMessageCount(msglist.size());
+		int failed = 0;
 		for (int i = 0; i < msglist.size(); i++) {
 			callbacks.SetStatusMessage(String.format(
 					"Moderating message %d of %d", i+1, msglist.size()));
 
-			try {
-				Thread.sleep(750);
-			} catch (InterruptedException e) {
+			sleep(applyDelay);
+			if (randomFailure(applyFailRate))
+				failed++;
+			else {
+				synchronized (moderated) {
+					moderated.add(msglist.get(i).id);
+				}
 			}
 			callbacks.SetProgressbarValue(i+1);
 		}
+		if (failed > 0) {
+			callbacks.ShowError(String.format(
+					"Failed to moderate %d of %d messages", failed, msglist
+							.size()));
+			return false;
+		}
 
 		return true;
 	}
@@ -91,8 +300,27 @@ public class Dummy extends ListServer {
 	 * Dummy implementation of MailMessage.
 	 */
 	private class DummyMessage extends MailMessage {
-		public DummyMessage() {
-			super("sender@dummy.dummy", "Dummy message subject", "Contents of a dummy message\nContents of a dummy message\n");
+		private int id;
+
+		public DummyMessage(int id) {
+			/*
+			 * Spread the senders and subjects in different orders, so
+			 * sorting on one doesn't sort on the other.
+			 */
+			this(id, String.format("sender%d@dummy.dummy", id % senderCount),
+					String.format("Dummy message subject %d",
+							(id * 7919) % subjectCount), body);
+		}
+
+		public DummyMessage(int id, String sender, String subject,
+				String content) {
+			super(sender, subject, content);
+			this.id = id;
+		}
+
+		@Override
+		public String getId() {
+			return String.valueOf(id);
 		}
 	}
 }
@@ -7,14 +7,19 @@
  */
 package net.hagander.mailinglistmoderator.backend.providers;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.hagander.mailinglistmoderator.backend.ListServer;
 import net.hagander.mailinglistmoderator.backend.MailMessage;
+import net.hagander.mailinglistmoderator.backend.RequestPool;
 import net.hagander.mailinglistmoderator.backend.MailMessage.statuslevel;
-import android.util.Log;
 
 /**
  * 
@@ -27,19 +32,21 @@ public class Mailman extends ListServer {
 	}
 
 	/*
-	 * Regular expressions for matching message lists and contents.
+	 * Approximate maximum size of the form data in a single moderation
+	 * request, and the number of such requests to send at the same time.
 	 */
-	private static final Pattern enumMailPattern = Pattern
-			.compile(
-					"<table CELLPADDING=\"0\" WIDTH=\"100%\" CELLSPACING=\"0\">(.*?)</table>\\s+<p>",
-					Pattern.DOTALL);
-	private static final Pattern messageContentPattern = Pattern
-			.compile(
-					"<td ALIGN=\"right\"><strong>From:</strong></td>\\s+<td>([^<]+)</td>.*?<td ALIGN=\"right\"><strong>Subject:</strong></td>\\s+<td>([^<]*)</td>.*?<td><TEXTAREA NAME=fulltext-(\\d+) ROWS=10 COLS=76 WRAP=soft READONLY>([^<]+)</TEXTAREA></td>",
-					Pattern.DOTALL);
-	private static final Pattern authorizationFailedPattern = Pattern
+	private static final int MAX_CHUNK_SIZE = 16384;
+	private static final int APPLY_PARALLELISM = 2;
+
+	/*
+	 * Regular expression for the overview page, which groups the messages by
+	 * sender and lists the id and subject of each, but not the contents.
+	 * Matches either a sender heading (group 1), or a message (id in group 2
+	 * and subject in group 3), in the order they appear on the page.
+	 */
+	private static final Pattern summaryPattern = Pattern
 			.compile(
-					"<strong><font size=\"\\+1\">Authorization\\s+failed.</font></strong>",
+					"<strong>From:</strong>\\s*([^<]+)</center>|\\?msgid=(\\d+)\">\\[\\d+\\]</a>.*?<strong>Subject:</strong>\\s*</td>\\s*<td[^>]*>([^<]*)</td>",
 					Pattern.DOTALL);
 
 	/**
@@ -47,44 +54,168 @@ public class Mailman extends ListServer {
 	 */
 	@Override
 	protected Vector<MailMessage> EnumerateMessages() {
-		Vector<MailMessage> messages = new Vector<MailMessage>();
+		if (lazy_content)
+			return EnumerateMessageSummaries();
+		return EnumerateMessageDetails();
+	}
 
-		// Fetch the details=all page which contains everything we need.
-		String page = FetchUrl(String.format("%s/%s/?details=all&adminpw=%s",
-				rooturl, listname, password));
+	/**
+	 * Enumerate messages including their contents, using the details=all
+	 * page.
+	 * 
+	 * The page is parsed while it's downloaded, so we never hold more than a
+	 * single message worth of HTML in memory. That also means the page has
+	 * already been parsed by the time we know if it's unchanged, but we
+	 * still save merging it into the queue.
+	 */
+	private Vector<MailMessage> EnumerateMessageDetails() {
+		final Vector<MailMessage> messages = new Vector<MailMessage>();
+
+		final MailmanPageParser parser = new MailmanPageParser(
+				new MailmanPageParser.MessageCallback() {
+					public void foundMessage(int id, String sender,
+							String subject, String content) {
+						messages.add(new MailmanMessage(id, sender, subject,
+								content));
+					}
+				});
+
+		String url = String.format("%s/%s/?details=all&adminpw=%s", rooturl,
+				listname, password);
+		long checksum = FetchUrl(url, new ResponseHandler() {
+			public void handleResponse(Reader r) throws IOException {
+				parser.parse(r);
+			}
+		});
 
 		/*
-		 * Check for no such list
+		 * Check for no such list or login failure
 		 */
-		if (page.contains("<h2>Mailman Administrative Database Error</h2>No such list <em>")) {
-			status = "List does not exist on server";
+		if (parser.getError() != null) {
+			status = parser.getError();
 			return null;
 		}
-		/*
-		 * Check for login failure
-		 */
-		if (authorizationFailedPattern.matcher(page).find()) {
-			status = "Authorization failed - invalid password?";
+		if (checkPageChecksum(checksum))
 			return null;
+		if (parser.getSkippedCount() > 0)
+			setEnumerationIncomplete();
+		return messages;
+	}
+
+	/**
+	 * Enumerate messages from the overview page, without their contents.
+	 * The contents are then loaded one message at a time when needed.
+	 */
+	private Vector<MailMessage> EnumerateMessageSummaries() {
+		final Vector<MailMessage> messages = new Vector<MailMessage>();
+
+		// The overview page has no contents, so it's small enough to get as a whole
+		PageCollector collector = new PageCollector();
+		try {
+			long checksum = FetchUrl(String.format("%s/%s/?adminpw=%s",
+					rooturl, listname, password), collector);
+			if (checkPageChecksum(checksum))
+				/* Same as last time, so no need to look at it */
+				return null;
+			CharSequence page = collector.getPage();
+			long parseStart = System.nanoTime();
+
+			/*
+			 * Check for no such list or login failure. There are no message
+			 * tables on this page, so this is all the parser will find.
+			 */
+			MailmanPageParser parser = new MailmanPageParser(
+					new MailmanPageParser.MessageCallback() {
+						public void foundMessage(int id, String sender,
+								String subject, String content) {
+						}
+					});
+			try {
+				parser.parse(collector.getReader());
+			} catch (IOException e) {
+				/* Can't happen when reading from memory */
+			}
+			if (parser.getError() != null) {
+				status = parser.getError();
+				return null;
+			}
+
+			ParseSummaries(page, new MailmanPageParser.MessageCallback() {
+				public void foundMessage(int id, String sender,
+						String subject, String content) {
+					messages.add(new MailmanMessage(id, sender, subject, null));
+				}
+			});
+			addParseTime(System.nanoTime() - parseStart);
+			return messages;
+		} finally {
+			collector.release();
 		}
+	}
 
-		/*
-		 * Attempt to locate all the messages in the queue.
-		 */
-		Matcher m = enumMailPattern.matcher(page);
+	/**
+	 * Find the messages on the overview page. They are handed to the
+	 * callback in the order they are on the page, with null contents.
+	 * 
+	 * The page is assumed to have been checked for errors already.
+	 */
+	public static void ParseSummaries(CharSequence page,
+			MailmanPageParser.MessageCallback callback) {
+		String sender = "";
+		Matcher m = summaryPattern.matcher(page);
 		while (m.find()) {
-			Matcher sm = messageContentPattern.matcher(m.group(1));
-			if (sm.find()) {
-				// Got a message
-				// group(1) == from
-				// group(2) == subject
-				// group(3) == id
-				// group(4) == contents
-				messages.add(new MailmanMessage(Integer.parseInt(sm.group(3)),
-						sm.group(1), sm.group(2), sm.group(4)));
+			if (m.group(1) != null) {
+				sender = m.group(1).trim();
+				continue;
 			}
+			callback.foundMessage(Integer.parseInt(m.group(2)), sender, m
+					.group(3), null);
 		}
-		return messages;
+	}
+
+	/**
+	 * Load the contents of a message from the page for that individual
+	 * message. The message object keeps it, so this is only done once.
+	 */
+	@Override
+	public void LoadMessageContent(MailMessage msg) {
+		if (msg.isContentLoaded())
+			return;
+
+		final MailmanMessage mmsg = (MailmanMessage) msg;
+		final String[] content = new String[1];
+		final MailmanPageParser parser = new MailmanPageParser(
+				new MailmanPageParser.MessageCallback() {
+					public void foundMessage(int id, String sender,
+							String subject, String c) {
+						if (id == mmsg.id)
+							content[0] = c;
+					}
+				});
+		String url = String.format("%s/%s/?msgid=%d&adminpw=%s", rooturl,
+				listname, mmsg.id, password);
+		FetchUrl(url, new ResponseHandler() {
+			public void handleResponse(Reader r) throws IOException {
+				parser.parse(r);
+			}
+		});
+
+		/* An error here is about this message, not the list status */
+		if (parser.getError() != null)
+			throw new RuntimeException(parser.getError());
+		if (content[0] == null)
+			throw new RuntimeException("Message is no longer in the queue");
+		mmsg.contentLoaded(content[0]);
+	}
+
+	/**
+	 * Recreate a message from a snapshot.
+	 */
+	@Override
+	protected MailMessage RestoreMessage(String id, String sender,
+			String subject, String content) {
+		return new MailmanMessage(Integer.parseInt(id), sender, subject,
+				content);
 	}
 
 	/**
@@ -97,51 +228,107 @@ public class Mailman extends ListServer {
 
 	/**
 	 * Apply any queued moderations to this list.
+	 * 
+	 * The moderations are POSTed as the same form the admindb page uses,
+	 * split into chunks so a very large batch doesn't end up as a single
+	 * huge request. The chunks are sent a few at a time, and if some of them
+	 * fail the rest are still applied.
 	 */
 	@Override
-	public boolean applyChanges(ListServerStatusCallbacks callbacks) {
-		// The whole moderation operation will go in a single querystring
-		StringBuilder str = new StringBuilder();
-		str.append(rooturl);
-		str.append("/");
-		str.append(listname);
-		str.append("/?");
+	public boolean applyChanges(final ListServerStatusCallbacks callbacks) {
+		final String url = String.format("%s/%s/", rooturl, listname);
+		final String pwparam;
+		try {
+			pwparam = "adminpw=" + URLEncoder.encode(password, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			/* UTF-8 is always supported */
+			throw new RuntimeException(e);
+		}
 
-		// Collect a querystring with all the message ids we are moderating and
-		// what to do with them.
+		// Collect the message ids we are moderating and what to do with them,
+		// into chunks of a limited size.
+		final Vector<String> chunks = new Vector<String>();
+		final Vector<Integer> chunkCounts = new Vector<Integer>();
+		StringBuilder str = new StringBuilder();
+		int inchunk = 0;
 		int count = 0;
 		for (int i = 0; i < messages.size(); i++) {
 			MailmanMessage msg = (MailmanMessage) messages.get(i);
 			if (msg.getStatus() != statuslevel.Defer) {
 				str.append(String.format("%d=%d&", msg.id, msg
 						.getStatusPostCode()));
+				inchunk++;
 				count++;
+				if (str.length() >= MAX_CHUNK_SIZE) {
+					str.append(pwparam);
+					chunks.add(str.toString());
+					chunkCounts.add(inchunk);
+					str.setLength(0);
+					inchunk = 0;
+				}
 			}
 		}
+		if (inchunk > 0) {
+			str.append(pwparam);
+			chunks.add(str.toString());
+			chunkCounts.add(inchunk);
+		}
 
 		if (count == 0)
 			/*
-			 * Should never happen, but just in case, so we don't construct a
-			 * bad URL
+			 * Should never happen, but just in case, so we don't send an
+			 * empty request
 			 */
 			return false;
 
 		callbacks.SetStatusMessage(String.format("Moderating %d messages...",
 				count));
 
-		// Append our password to the request
-		str.append("adminpw=");
-		str.append(password);
-
 		/*
 		 * Unfortunately mailman doesn't actually tell us if our modifications
 		 * succeeded or not. We'll get an exception if the call failed, of
-		 * course, but not if we passed invalid data.
+		 * course, but not if we passed invalid data. Each chunk returns the
+		 * error it failed with, or null.
 		 */
-		try {
-			FetchUrl(str.toString());
-		} catch (Exception ex) {
-			callbacks.ShowError(ex.toString());
+		Vector<Callable<String>> requests = new Vector<Callable<String>>();
+		for (int i = 0; i < chunks.size(); i++) {
+			final String form = chunks.get(i);
+			requests.add(new Callable<String>() {
+				public String call() {
+					try {
+						PostUrl(url, form);
+						return null;
+					} catch (Exception ex) {
+						return ex.toString();
+					}
+				}
+			});
+		}
+
+		final int total = chunks.size();
+		Vector<String> errors = RequestPool.runAll(requests,
+				APPLY_PARALLELISM, new RequestPool.CompletionListener() {
+					public void taskCompleted(int completed) {
+						if (total > 1)
+							callbacks.SetStatusMessage(String.format(
+									"Moderated batch %d of %d", completed,
+									total));
+					}
+				});
+
+		int failed = 0;
+		String firsterror = null;
+		for (int i = 0; i < errors.size(); i++) {
+			if (errors.get(i) != null) {
+				failed += chunkCounts.get(i);
+				if (firsterror == null)
+					firsterror = errors.get(i);
+			}
+		}
+		if (failed > 0) {
+			callbacks.ShowError(String.format(
+					"Failed to moderate %d of %d messages: %s", failed, count,
+					firsterror));
 			return false;
 		}
 
@@ -161,6 +348,18 @@ public class Mailman extends ListServer {
 			this.id = id;
 		}
 
+		@Override
+		public String getId() {
+			return String.valueOf(id);
+		}
+
+		/**
+		 * Set the contents once they have been loaded on demand.
+		 */
+		private void contentLoaded(String content) {
+			setContent(content);
+		}
+
 		/**
 		 * Map the status code to the POST value in a mailman form.
 		 */
@@ -0,0 +1,486 @@
+/*
+ * MailmanPageParser.java - This class implements a streaming parser for the mailman admindb page.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend.providers;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Parses the details=all admindb page while it's being downloaded.
+ *         Each held message is handed to the callback as soon as its table
+ *         has been read, so memory use does not grow with the size of the
+ *         page.
+ *
+ *         Rather than using regular expressions, the page is scanned in a
+ *         single forward pass by a small state machine, which never has to
+ *         back up in the input. The checks for the error pages are done in
+ *         the same pass.
+ */
+public class MailmanPageParser {
+	/**
+	 * Callback receiving each held message found on the page.
+	 */
+	public interface MessageCallback {
+		public void foundMessage(int id, String sender, String subject,
+				String content);
+	}
+
+	/*
+	 * Each held message is in a table starting with this marker, and ending
+	 * with a </table> followed by whitespace and a paragraph.
+	 */
+	private static final String tableStart = "<table CELLPADDING=\"0\" WIDTH=\"100%\" CELLSPACING=\"0\">";
+	private static final String tableEnd = "</table>";
+	private static final String tableEndParagraph = "<p>";
+
+	/*
+	 * Markers for the error pages. The authorization failed one is followed
+	 * by whitespace, "failed", any one character and the closing tags.
+	 */
+	private static final String noSuchListMarker = "<h2>Mailman Administrative Database Error</h2>No such list <em>";
+	private static final String authFailedMarker = "<strong><font size=\"+1\">Authorization";
+	private static final String authFailedWord = "failed";
+	private static final String authFailedEnd = "</font></strong>";
+
+	/*
+	 * The steps taken to pick a message out of its table. This corresponds
+	 * to the following regular expression, with .*? in between the fields:
+	 *
+	 * <td ALIGN="right"><strong>From:</strong></td>\s+<td>([^<]+)</td>
+	 * <td ALIGN="right"><strong>Subject:</strong></td>\s+<td>([^<]*)</td>
+	 * <td><TEXTAREA NAME=fulltext-(\d+) ROWS=10 COLS=76 WRAP=soft READONLY>([^<]+)</TEXTAREA></td>
+	 *
+	 * SEEK looks for the string anywhere, while EXPECT requires it at the
+	 * current position. If any step that isn't SEEK fails, we go back to
+	 * the closest SEEK before it and continue from there.
+	 */
+	private static final int SEEK = 0;
+	private static final int SPACE = 1;
+	private static final int EXPECT = 2;
+	private static final int TEXT = 3;
+	private static final int DIGITS = 4;
+
+	private static final int CAPTURE_NONE = -1;
+	private static final int CAPTURE_SENDER = 0;
+	private static final int CAPTURE_SUBJECT = 1;
+	private static final int CAPTURE_CONTENT = 2;
+
+	private static final int[] stepTypes = {
+			SEEK, SPACE, EXPECT, TEXT, EXPECT,
+			SEEK, SPACE, EXPECT, TEXT, EXPECT,
+			SEEK, DIGITS, EXPECT, TEXT, EXPECT };
+	private static final String[] stepStrings = {
+			"<td ALIGN=\"right\"><strong>From:</strong></td>", null, "<td>", null, "</td>",
+			"<td ALIGN=\"right\"><strong>Subject:</strong></td>", null, "<td>", null, "</td>",
+			"<td><TEXTAREA NAME=fulltext-", null, " ROWS=10 COLS=76 WRAP=soft READONLY>", null, "</TEXTAREA></td>" };
+	private static final int[] stepCaptures = {
+			CAPTURE_NONE, CAPTURE_NONE, CAPTURE_NONE, CAPTURE_SENDER, CAPTURE_NONE,
+			CAPTURE_NONE, CAPTURE_NONE, CAPTURE_NONE, CAPTURE_SUBJECT, CAPTURE_NONE,
+			CAPTURE_NONE, CAPTURE_NONE, CAPTURE_NONE, CAPTURE_CONTENT, CAPTURE_NONE };
+	/* Minimum length of the text captured by each TEXT step */
+	private static final int[] stepMinLength = {
+			0, 0, 0, 1, 0,
+			0, 0, 0, 0, 0,
+			0, 0, 0, 1, 0 };
+
+	/* Step value meaning the message has been found, wait for the table end */
+	private static final int STEP_DONE = stepTypes.length;
+	/* Step value meaning we're not inside a message table */
+	private static final int STEP_OUTSIDE = -1;
+
+	private final MessageCallback callback;
+
+	private final Seeker tableStartSeeker = new Seeker(tableStart);
+	private final Seeker tableEndSeeker = new Seeker(tableEnd);
+	private final Seeker noSuchListSeeker = new Seeker(noSuchListMarker);
+	private final Seeker authFailedSeeker = new Seeker(authFailedMarker);
+	private final Seeker[] stepSeekers;
+
+	private int step = STEP_OUTSIDE;
+	/* Position within the string for EXPECT steps, or a flag for SPACE */
+	private int stepPos;
+
+	/* Progress on matching the end of the table, see feedTableEnd() */
+	private int tableEndState;
+	private int tableEndPos;
+	/* Progress on matching the authorization failed text, see feedAuthFailed() */
+	private int authState;
+	private int authPos;
+
+	private final StringBuilder[] captures = { new StringBuilder(),
+			new StringBuilder(), new StringBuilder() };
+	private int id;
+	private int idDigits;
+
+	private String error = null;
+	/* Number of message tables where no message could be picked out */
+	private int skipped = 0;
+
+	public MailmanPageParser(MessageCallback callback) {
+		this.callback = callback;
+
+		stepSeekers = new Seeker[stepTypes.length];
+		for (int i = 0; i < stepTypes.length; i++)
+			if (stepTypes[i] == SEEK)
+				stepSeekers[i] = new Seeker(stepStrings[i]);
+	}
+
+	/**
+	 * Get the error found on the page, if any.
+	 *
+	 * @return a status message describing the error, or null if the page
+	 *         was a valid moderation queue.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Get the number of message tables on the page that the message could
+	 * not be read from.
+	 */
+	public int getSkippedCount() {
+		return skipped;
+	}
+
+	/**
+	 * Read and parse the whole page. Stops early if the page turns out to
+	 * be an error page.
+	 */
+	public void parse(Reader r) throws IOException {
+		char[] chunk = new char[8192];
+		int len;
+		while (error == null && (len = r.read(chunk)) != -1) {
+			for (int i = 0; i < len && error == null; i++) {
+				if (isIdle()) {
+					/*
+					 * Nothing is partially matched, and every string we
+					 * look for starts with a '<', so jump straight to the
+					 * next one. Text being captured is copied in bulk.
+					 */
+					int j = i;
+					while (j < len && chunk[j] != '<')
+						j++;
+					if (step >= 0 && step != STEP_DONE
+							&& stepTypes[step] == TEXT)
+						captures[stepCaptures[step]].append(chunk, i, j - i);
+					i = j;
+					if (i == len)
+						break;
+				}
+				feed(chunk[i]);
+			}
+		}
+	}
+
+	/**
+	 * Check if no matcher is in the middle of a match, meaning any
+	 * character other than '<' would leave the state unchanged (apart from
+	 * being added to the text being captured, if any).
+	 */
+	private boolean isIdle() {
+		if (step == STEP_OUTSIDE)
+			return tableStartSeeker.isIdle() && noSuchListSeeker.isIdle()
+					&& authState == 0 && authFailedSeeker.isIdle();
+
+		if (tableEndState != 0 || !tableEndSeeker.isIdle())
+			return false;
+		if (step == STEP_DONE)
+			return true;
+		if (stepTypes[step] == SEEK)
+			return stepSeekers[step].isIdle();
+		return stepTypes[step] == TEXT;
+	}
+
+	/**
+	 * Process one character of the page.
+	 */
+	private void feed(char c) {
+		if (step == STEP_OUTSIDE) {
+			if (tableStartSeeker.feed(c)) {
+				enterTable();
+				return;
+			}
+			/*
+			 * Check for no such list
+			 */
+			if (noSuchListSeeker.feed(c)) {
+				error = "List does not exist on server";
+				return;
+			}
+			/*
+			 * Check for login failure
+			 */
+			if (feedAuthFailed(c)) {
+				error = "Authorization failed - invalid password?";
+			}
+			return;
+		}
+
+		if (step != STEP_DONE)
+			feedStep(c);
+		if (feedTableEnd(c)) {
+			if (step != STEP_DONE)
+				skipped++;
+			step = STEP_OUTSIDE;
+		}
+	}
+
+	/**
+	 * Reset the per-message state when a new message table starts.
+	 */
+	private void enterTable() {
+		for (int i = 0; i < captures.length; i++)
+			captures[i].setLength(0);
+		tableEndSeeker.reset();
+		tableEndState = 0;
+		startStep(0);
+	}
+
+	private void startStep(int newstep) {
+		step = newstep;
+		stepPos = 0;
+		if (step == STEP_DONE)
+			return;
+		switch (stepTypes[step]) {
+		case SEEK:
+			stepSeekers[step].reset();
+			break;
+		case TEXT:
+			captures[stepCaptures[step]].setLength(0);
+			break;
+		case DIGITS:
+			id = 0;
+			idDigits = 0;
+			break;
+		}
+	}
+
+	/**
+	 * Give up on the current step, and go back to the closest SEEK step
+	 * before it.
+	 */
+	private void failStep() {
+		int s = step;
+		while (stepTypes[s] != SEEK)
+			s--;
+		startStep(s);
+	}
+
+	/**
+	 * Feed a character to the current step of picking out the message. A
+	 * character that makes a step end or fail is passed on to the step that
+	 * follows, the same way a regular expression would look at it again.
+	 */
+	private void feedStep(char c) {
+		while (true) {
+			switch (stepTypes[step]) {
+			case SEEK:
+				if (stepSeekers[step].feed(c))
+					startStep(step + 1);
+				return;
+			case SPACE:
+				if (Character.isWhitespace(c)) {
+					stepPos = 1;
+					return;
+				}
+				if (stepPos == 0) {
+					failStep();
+					continue;
+				}
+				startStep(step + 1);
+				continue;
+			case EXPECT:
+				String s = stepStrings[step];
+				if (c == s.charAt(stepPos)) {
+					if (++stepPos == s.length()) {
+						startStep(step + 1);
+						if (step == STEP_DONE)
+							foundMessage();
+					}
+					return;
+				}
+				failStep();
+				continue;
+			case TEXT:
+				StringBuilder capture = captures[stepCaptures[step]];
+				if (c != '<') {
+					capture.append(c);
+					return;
+				}
+				if (capture.length() < stepMinLength[step]) {
+					failStep();
+					continue;
+				}
+				startStep(step + 1);
+				continue;
+			case DIGITS:
+				if (c >= '0' && c <= '9' && idDigits < 9) {
+					id = id * 10 + (c - '0');
+					idDigits++;
+					return;
+				}
+				if (idDigits == 0) {
+					failStep();
+					continue;
+				}
+				startStep(step + 1);
+				continue;
+			}
+		}
+	}
+
+	private void foundMessage() {
+		callback.foundMessage(id, captures[CAPTURE_SENDER].toString(),
+				captures[CAPTURE_SUBJECT].toString(), captures[CAPTURE_CONTENT]
+						.toString());
+	}
+
+	/**
+	 * Look for </table>\s+<p>, which ends the table of a message.
+	 *
+	 * @return true when the whole sequence has been seen
+	 */
+	private boolean feedTableEnd(char c) {
+		while (true) {
+			switch (tableEndState) {
+			case 0:
+				/* Looking for </table> */
+				if (tableEndSeeker.feed(c))
+					tableEndState = 1;
+				return false;
+			case 1:
+				/* Need at least one whitespace */
+				if (Character.isWhitespace(c)) {
+					tableEndState = 2;
+					tableEndPos = 0;
+					return false;
+				}
+				tableEndState = 0;
+				continue;
+			case 2:
+				/* Any amount of whitespace, followed by <p> */
+				if (tableEndPos == 0 && Character.isWhitespace(c))
+					return false;
+				if (c == tableEndParagraph.charAt(tableEndPos)) {
+					if (++tableEndPos == tableEndParagraph.length()) {
+						tableEndState = 0;
+						return true;
+					}
+					return false;
+				}
+				tableEndState = 0;
+				continue;
+			}
+		}
+	}
+
+	/**
+	 * Look for the authorization failed message, which has whitespace in
+	 * the middle and so can't be found by a single Seeker.
+	 *
+	 * @return true when the whole message has been seen
+	 */
+	private boolean feedAuthFailed(char c) {
+		while (true) {
+			switch (authState) {
+			case 0:
+				if (authFailedSeeker.feed(c))
+					authState = 1;
+				return false;
+			case 1:
+				/* Need at least one whitespace */
+				if (Character.isWhitespace(c)) {
+					authState = 2;
+					authPos = 0;
+					return false;
+				}
+				authState = 0;
+				continue;
+			case 2:
+				/* Any amount of whitespace, followed by "failed" */
+				if (authPos == 0 && Character.isWhitespace(c))
+					return false;
+				if (c == authFailedWord.charAt(authPos)) {
+					if (++authPos == authFailedWord.length())
+						authState = 3;
+					return false;
+				}
+				authState = 0;
+				continue;
+			case 3:
+				/* Any single character */
+				authState = 4;
+				authPos = 0;
+				return false;
+			case 4:
+				if (c == authFailedEnd.charAt(authPos)) {
+					if (++authPos == authFailedEnd.length()) {
+						authState = 0;
+						return true;
+					}
+					return false;
+				}
+				authState = 0;
+				continue;
+			}
+		}
+	}
+
+	/**
+	 * Finds a fixed string anywhere in a stream of characters fed to it one
+	 * by one, using Knuth-Morris-Pratt so no character is looked at twice.
+	 */
+	private static class Seeker {
+		private final String pattern;
+		private final int[] fail;
+		private int pos;
+
+		public Seeker(String pattern) {
+			this.pattern = pattern;
+			this.fail = new int[pattern.length()];
+			int k = 0;
+			for (int i = 1; i < pattern.length(); i++) {
+				while (k > 0 && pattern.charAt(i) != pattern.charAt(k))
+					k = fail[k - 1];
+				if (pattern.charAt(i) == pattern.charAt(k))
+					k++;
+				fail[i] = k;
+			}
+			this.pos = 0;
+		}
+
+		public void reset() {
+			pos = 0;
+		}
+
+		public boolean isIdle() {
+			return pos == 0;
+		}
+
+		/**
+		 * Feed the next character.
+		 *
+		 * @return true if this character completes the string
+		 */
+		public boolean feed(char c) {
+			while (pos > 0 && pattern.charAt(pos) != c)
+				pos = fail[pos - 1];
+			if (pattern.charAt(pos) == c)
+				pos++;
+			if (pos == pattern.length()) {
+				pos = 0;
+				return true;
+			}
+			return false;
+		}
+	}
+}
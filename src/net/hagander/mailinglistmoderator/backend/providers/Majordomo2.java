@@ -8,11 +8,13 @@
 package net.hagander.mailinglistmoderator.backend.providers;
 
 import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.hagander.mailinglistmoderator.backend.ListServer;
 import net.hagander.mailinglistmoderator.backend.MailMessage;
+import net.hagander.mailinglistmoderator.backend.RequestPool;
 import net.hagander.mailinglistmoderator.backend.MailMessage.statuslevel;
 
 /**
@@ -25,6 +27,25 @@ public class Majordomo2 extends ListServer {
 		super(name, rooturl, password, override_certname, whitelisted_cert);
 	}
 
+	/*
+	 * Number of tokeninfo requests for one list to run at the same time.
+	 */
+	private static final int TOKENINFO_PARALLELISM = 4;
+
+	/*
+	 * Number of moderation requests for one list to run at the same time.
+	 */
+	public static final int DEFAULT_APPLY_PARALLELISM = 4;
+	private static int applyParallelism = DEFAULT_APPLY_PARALLELISM;
+
+	/**
+	 * Set how many moderation requests to send at the same time when
+	 * applying changes. A value of 1 sends them one by one.
+	 */
+	public static void setApplyParallelism(int parallelism) {
+		applyParallelism = Math.max(1, parallelism);
+	}
+
 	/*
 	 * Regular expressions for matching message lists and contents.
 	 */
@@ -49,6 +70,10 @@ public class Majordomo2 extends ListServer {
 			.compile(
 			"<pre>\\*{4} The &quot;(.*?)&quot; mailing list is not supported at",
 			Pattern.DOTALL);
+	private static final Pattern badPasswordPattern = Pattern
+			.compile(
+			"<pre>The password is invalid.  Some common reasons for this error are:",
+			Pattern.LITERAL);
 
 	/**
 	 * Enumerate all messages on the list, and return them as an Vector.
@@ -58,95 +83,210 @@ public class Majordomo2 extends ListServer {
 		Vector<MailMessage> messages = new Vector<MailMessage>();
 
 		// Fetcha list of all the tokens in "consult" mode
-		String page = FetchUrl(String.format(
-				"%s?passw=%s&list=%s&func=showtokens-consult", rooturl,
-				password, listname));
+		Vector<String> tokens = new Vector<String>();
+		PageCollector collector = new PageCollector();
+		try {
+			long checksum = FetchUrl(String.format(
+					"%s?passw=%s&list=%s&func=showtokens-consult", rooturl,
+					password, listname), collector);
+			if (checkPageChecksum(checksum))
+				/* Same tokens as last time, so nothing to parse or fetch */
+				return null;
+			CharSequence page = collector.getPage();
+			long parseStart = System.nanoTime();
+
+			String error = ParseTokenListError(page);
+			if (error != null) {
+				status = error;
+				return null;
+			}
+			tokens = ParseTokenList(page);
+			addParseTime(System.nanoTime() - parseStart);
+		} finally {
+			collector.release();
+		}
 
 		/*
-		 * Check for no such list
+		 * Tokens never change while they're in the queue, so we only need
+		 * to look at the ones we haven't seen before. Forget about the ones
+		 * that are gone.
 		 */
-		if (nolistPattern.matcher(page).find()) {
-			status = "List does not exist on server";
-			return null;
-		}
+		TokenInfoCache cache = TokenInfoCache.forList(rooturl, listname);
+		cache.retainTokens(tokens);
+
 		/*
-		 * Check for login failure
+		 * Majordomo2, in it's infinite wisdom, doesn't include the subject
+		 * line on the list. So we need to fetch the actual message contents
+		 * once for each to get it. Do this in parallel, since there may be
+		 * a lot of them, but keep the messages in the order of the list.
 		 */
-		if (page.contains("<pre>The password is invalid.  Some common reasons for this error are:")) {
-			status = "Authorization failed - invalid password?";
-			return null;
+		Majordomo2Message[] found = new Majordomo2Message[tokens.size()];
+		Vector<Integer> fetchIndexes = new Vector<Integer>();
+		Vector<Callable<Majordomo2Message>> fetches = new Vector<Callable<Majordomo2Message>>();
+		for (int i = 0; i < tokens.size(); i++) {
+			final String token = tokens.get(i);
+			TokenInfoCache.Entry e = cache.get(token);
+			if (e != null) {
+				found[i] = new Majordomo2Message(token, e.sender, e.subject,
+						e.content);
+				continue;
+			}
+			fetchIndexes.add(i);
+			fetches.add(new Callable<Majordomo2Message>() {
+				public Majordomo2Message call() {
+					return FetchTokenInfo(token);
+				}
+			});
+		}
+
+		Vector<Majordomo2Message> results = RequestPool.runAll(fetches,
+				TOKENINFO_PARALLELISM);
+		for (int i = 0; i < results.size(); i++)
+			found[fetchIndexes.get(i)] = results.get(i);
+		cache.save();
+
+		for (int i = 0; i < found.length; i++) {
+			if (found[i] != null)
+				messages.add(found[i]);
 		}
+		/* Try the ones that failed again next time, even if nothing changed */
+		if (messages.size() < found.length)
+			setEnumerationIncomplete();
+		return messages;
+	}
 
+	/**
+	 * Check if a showtokens page is an error page rather than a list of
+	 * tokens.
+	 * 
+	 * @return a status message describing the error, or null if the page is
+	 *         a valid list of tokens
+	 */
+	public static String ParseTokenListError(CharSequence page) {
+		/*
+		 * Check for no such list
+		 */
+		if (nolistPattern.matcher(page).find())
+			return "List does not exist on server";
+		/*
+		 * Check for login failure
+		 */
+		if (badPasswordPattern.matcher(page).find())
+			return "Authorization failed - invalid password?";
+		return null;
+	}
 
+	/**
+	 * Get the tokens of all held posts from a showtokens page.
+	 */
+	public static Vector<String> ParseTokenList(CharSequence page) {
+		Vector<String> tokens = new Vector<String>();
 		Matcher m = enumMailPattern.matcher(page);
-		while (m.find()) {
-			/*
-			 * Majordomo2, in it's infinite wisdom, doesn't include the subject
-			 * line on the list. So we need to fetch the actual message contents
-			 * once for each to get it.
-			 */
-			String url = String.format(
-					"%s?passw=%s&list=%s&func=tokeninfo&extra=%s", rooturl,
-					password, listname, m.group(1));
-			String subpage = FetchUrl(url);
-			if (subpage == null) {
-				/*
-				 * No tokeninfo returned here. Just ignore this message - maybe
-				 * somebody moderated it while we were looking at others.
-				 */
-				continue;
-			}
-			/*
-			 * Attempt to match a mail that has a text part, which is what majordomo will show us.
-			 */
-			Matcher sm = mailDetailsPattern.matcher(subpage);
-			if (sm.find()) {
-				messages.add(new Majordomo2Message(m.group(1), sm.group(1), sm
-						.group(2), sm.group(3)));
-				continue;
-			}
-			sm = mailDetailsNoSubjectPattern.matcher(subpage);
-			if (sm.find()) {
-				messages.add(new Majordomo2Message(m.group(1), sm.group(1),
-						"No subject", sm.group(2)));
-				continue;
-			}
+		while (m.find())
+			tokens.add(m.group(1));
+		return tokens;
+	}
+
+	/**
+	 * Get the sender, subject and contents of a message from its tokeninfo
+	 * page. The values are returned as they are on the page, without
+	 * decoding.
+	 * 
+	 * @return an array of sender, subject and contents, where the contents
+	 *         are null if the message has no text part and it has to be
+	 *         fetched separately. Returns null if the page can't be parsed.
+	 */
+	public static String[] ParseTokenDetails(CharSequence subpage) {
+		/*
+		 * Attempt to match a mail that has a text part, which is what majordomo will show us.
+		 */
+		Matcher sm = mailDetailsPattern.matcher(subpage);
+		if (sm.find())
+			return new String[] { sm.group(1), sm.group(2), sm.group(3) };
+		sm = mailDetailsNoSubjectPattern.matcher(subpage);
+		if (sm.find())
+			return new String[] { sm.group(1), "No subject", sm.group(2) };
+
+		/*
+		 * Attempt to match a mail that *doesn't* have a text part.
+		 */
+		sm = mailDetailsNoTextPattern.matcher(subpage);
+		if (sm.find())
+			return new String[] { sm.group(1), sm.group(2), null };
+		return null;
+	}
 
+	/**
+	 * Fetch the sender, subject and contents of a single message.
+	 * 
+	 * @param token
+	 *            The token of the message
+	 * @return a message, or null if it could not be found
+	 */
+	private Majordomo2Message FetchTokenInfo(String token) {
+		String url = String.format(
+				"%s?passw=%s&list=%s&func=tokeninfo&extra=%s", rooturl,
+				password, listname, token);
+		String[] details;
+		PageCollector collector = new PageCollector();
+		try {
+			FetchUrl(url, collector);
+			long parseStart = System.nanoTime();
+			details = ParseTokenDetails(collector.getPage());
+			addParseTime(System.nanoTime() - parseStart);
+		} finally {
+			collector.release();
+		}
+		if (details == null)
+			return null;
+		if (details[2] == null) {
 			/*
-			 * Attempt to match a mail that *doesn't* have a text part.
+			 * This will require yet another fetch in order to get the text of the first part.
 			 */
-			sm = mailDetailsNoTextPattern.matcher(subpage);
-			if (sm.find()) {
+			url = String.format(
+					"%s?passw=%s&list=%s&func=tokeninfo-part&extra=%s%%201", rooturl,
+					password, listname, token);
+			String partpage = FetchUrl(url);
+			if (partpage == null) {
 				/*
-				 * This will require yet another fetch in order to get the text of the first part.
+				 * Couldn't get text, just ignore it.
 				 */
-				url = String.format(
-						"%s?passw=%s&list=%s&func=tokeninfo-part&extra=%s%%201", rooturl,
-						password, listname, m.group(1));
-				subpage = FetchUrl(url);
-				if (subpage == null) {
-					/*
-					 * Couldn't get text, just ignore it.
-					 */
-					continue;
-				}
-				messages.add(new Majordomo2Message(m.group(1), sm.group(1),
-						sm.group(2), subpage));
-				continue;
+				return null;
 			}
+			details[2] = partpage;
 		}
-		return messages;
+		return CacheTokenInfo(token, details[0], details[1], details[2]);
+	}
+
+	/**
+	 * Remember the information about a token, and create a message from it.
+	 */
+	private Majordomo2Message CacheTokenInfo(String token, String sender,
+			String subject, String content) {
+		TokenInfoCache.forList(rooturl, listname).put(token, sender, subject,
+				content);
+		return new Majordomo2Message(token, sender, subject, content);
 	}
 
 	/**
 	 * Extremely trivial implementation of decoding some HTML escapes for nicer
 	 * viewing.
 	 */
-	private static String trivialDecode(String s) {
+	public static String trivialDecode(String s) {
 		return s.replaceAll("&quot;", "\"").replaceAll("&lt;", "<").replaceAll(
 				"&gt;", ">");
 	}
 
+	/**
+	 * Recreate a message from a snapshot. The sender and subject stored there
+	 * have already been decoded.
+	 */
+	@Override
+	protected MailMessage RestoreMessage(String id, String sender,
+			String subject, String content) {
+		return new Majordomo2Message(id, sender, subject, content, false);
+	}
+
 	/**
 	 * In majordomo2 we moderate each message individually.
 	 */
@@ -159,7 +299,7 @@ public class Majordomo2 extends ListServer {
 	 * Apply any moderations to this list.
 	 */
 	@Override
-	public boolean applyChanges(ListServerStatusCallbacks callbacks) {
+	public boolean applyChanges(final ListServerStatusCallbacks callbacks) {
 		/*
 		 * Collect all the messages we're actually going to do moderation on in
 		 * it's own list.
@@ -180,22 +320,40 @@ public class Majordomo2 extends ListServer {
 			return false;
 
 		callbacks.SetMessageCount(msglist.size());
+		callbacks.SetStatusMessage(String.format(
+				"Moderating %d messages...", msglist.size()));
+
 		/*
-		 * Now that we know how many, moderate each individual one.
+		 * Now that we know how many, moderate each individual one. There is
+		 * one request per message, so send several at the same time.
 		 */
+		final int total = msglist.size();
+		Vector<Callable<String>> requests = new Vector<Callable<String>>();
 		for (int i = 0; i < msglist.size(); i++) {
-			callbacks.SetStatusMessage(String.format(
-					"Moderating message %d of %d", i+1, msglist.size()));
-
-			try {
-				FetchUrl(String.format("%s?passw=%s&list=%s&func=%s&extra=%s",
-						rooturl, password, listname, msglist.get(i)
-								.getMajordomoFunc(), msglist.get(i).token));
-			} catch (Exception ex) {
-				callbacks.ShowError(ex.toString());
-				return false;
-			}
-			callbacks.SetProgressbarValue(i+1);
+			final Majordomo2Message msg = msglist.get(i);
+			requests.add(new Callable<String>() {
+				public String call() {
+					return FetchUrl(String.format(
+							"%s?passw=%s&list=%s&func=%s&extra=%s", rooturl,
+							password, listname, msg.getMajordomoFunc(),
+							msg.token));
+				}
+			});
+		}
+
+		try {
+			RequestPool.runAll(requests, applyParallelism,
+					new RequestPool.CompletionListener() {
+						public void taskCompleted(int completed) {
+							callbacks.SetStatusMessage(String.format(
+									"Moderated message %d of %d", completed,
+									total));
+							callbacks.SetProgressbarValue(completed);
+						}
+					});
+		} catch (Exception ex) {
+			callbacks.ShowError(ex.toString());
+			return false;
 		}
 
 		return true;
@@ -210,10 +368,21 @@ public class Majordomo2 extends ListServer {
 
 		public Majordomo2Message(String token, String sender, String subject,
 				String content) {
-			super(trivialDecode(sender), trivialDecode(subject), content);
+			this(token, sender, subject, content, true);
+		}
+
+		public Majordomo2Message(String token, String sender, String subject,
+				String content, boolean decode) {
+			super(decode ? trivialDecode(sender) : sender,
+					decode ? trivialDecode(subject) : subject, content);
 			this.token = token;
 		}
 
+		@Override
+		public String getId() {
+			return token;
+		}
+
 		/**
 		 * Map the status code to the text representation to be used on a
 		 * Majordomo2 form
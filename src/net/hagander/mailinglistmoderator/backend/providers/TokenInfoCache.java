@@ -0,0 +1,182 @@
+/*
+ * TokenInfoCache.java - This class holds a cache of Majordomo2 token information.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.backend.providers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.logging.Logger;
+
+import net.hagander.mailinglistmoderator.backend.ListServer;
+import net.hagander.mailinglistmoderator.backend.MailMessage;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Majordomo2 tokens never change while they sit in the queue, so once
+ *         we have fetched the tokeninfo for one we can keep the sender,
+ *         subject and contents around until the token goes away. There is one
+ *         cache per list, kept in memory and, if a cache directory has been
+ *         set, also on disk so it survives restarts.
+ */
+class TokenInfoCache {
+	private static final Logger log = Logger.getLogger("TokenInfoCache");
+	private static final int FILE_VERSION = 1;
+
+	private static final HashMap<String, TokenInfoCache> caches = new HashMap<String, TokenInfoCache>();
+
+	/**
+	 * The parts of a tokeninfo page we need to recreate the message.
+	 */
+	static class Entry {
+		final String sender;
+		final String subject;
+		final String content;
+
+		Entry(String sender, String subject, String content) {
+			this.sender = sender;
+			this.subject = subject;
+			this.content = content;
+		}
+	}
+
+	private final File file;
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private boolean dirty = false;
+
+	private TokenInfoCache(File file) {
+		this.file = file;
+		if (file != null)
+			load();
+	}
+
+	/**
+	 * Get the cache for a list, loading it from disk the first time.
+	 *
+	 * @param rooturl
+	 *            Root URL of the server
+	 * @param listname
+	 *            Name of the list
+	 * @return the cache for this list
+	 */
+	static TokenInfoCache forList(String rooturl, String listname) {
+		String key = rooturl + "|" + listname;
+		synchronized (caches) {
+			TokenInfoCache cache = caches.get(key);
+			if (cache == null) {
+				File dir = ListServer.getCacheDirectory();
+				cache = new TokenInfoCache(dir == null ? null : new File(dir,
+						String.format("tokeninfo-%08x", key.hashCode())));
+				caches.put(key, cache);
+			}
+			return cache;
+		}
+	}
+
+	synchronized Entry get(String token) {
+		return entries.get(token);
+	}
+
+	synchronized void put(String token, String sender, String subject,
+			String content) {
+		/* The message will only keep the beginning of the contents anyway */
+		if (content.length() > MailMessage.MAX_CONTENT_LENGTH)
+			content = content.substring(0, MailMessage.MAX_CONTENT_LENGTH);
+		entries.put(token, new Entry(sender, subject, content));
+		dirty = true;
+	}
+
+	/**
+	 * Remove all tokens that are no longer in the queue.
+	 *
+	 * @param tokens
+	 *            All tokens currently in the queue
+	 */
+	synchronized void retainTokens(Vector<String> tokens) {
+		HashSet<String> keep = new HashSet<String>(tokens);
+		Iterator<String> it = entries.keySet().iterator();
+		while (it.hasNext()) {
+			if (!keep.contains(it.next())) {
+				it.remove();
+				dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Write the cache to disk, if it has changed and there is somewhere to
+	 * write it.
+	 */
+	synchronized void save() {
+		if (file == null || !dirty)
+			return;
+		/* Write to a new file and rename, so a crash never leaves half a file */
+		File tmpfile = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmpfile)));
+			try {
+				out.writeInt(FILE_VERSION);
+				out.writeInt(entries.size());
+				for (String token : entries.keySet()) {
+					Entry e = entries.get(token);
+					out.writeUTF(token);
+					out.writeUTF(e.sender);
+					out.writeUTF(e.subject);
+					out.writeUTF(e.content);
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmpfile.renameTo(file))
+				throw new IOException("Could not rename token cache file");
+			dirty = false;
+		} catch (IOException e) {
+			tmpfile.delete();
+			/* Not fatal, we'll just have to fetch them again next time */
+			log.warning(String.format(
+					"Failed to write token cache: %s", e.getMessage()));
+		}
+	}
+
+	private void load() {
+		if (!file.exists())
+			return;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != FILE_VERSION)
+					return;
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String token = in.readUTF();
+					entries.put(token, new Entry(in.readUTF(), in.readUTF(), in
+							.readUTF()));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			/* Start out with an empty cache if it can't be read */
+			log.warning(String.format(
+					"Failed to read token cache: %s", e.getMessage()));
+			entries.clear();
+		}
+	}
+}
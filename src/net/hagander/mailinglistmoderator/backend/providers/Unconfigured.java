@@ -13,6 +13,7 @@ import java.util.Vector;
 
 import net.hagander.mailinglistmoderator.backend.ListServer;
 import net.hagander.mailinglistmoderator.backend.MailMessage;
+import net.hagander.mailinglistmoderator.backend.QueueDelta;
 
 /**
  * 
@@ -41,8 +42,9 @@ public class Unconfigured extends ListServer {
 	}
 
 	@Override
-	public void Populate() {
+	public QueueDelta Populate() {
 		populated = true;
 		status = String.format("Unconfigured list");
+		return new QueueDelta(new Vector<MailMessage>(), new Vector<MailMessage>());
 	}
 }
@@ -1,5 +1,5 @@
 /*
- * ListServerAdapter.java - This class holds an ArrayAdapter for the main activity.
+ * ListServerAdapter.java - This class holds a ListAdapter for the main activity.
  * 
  * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
  * 
@@ -7,29 +7,72 @@
  */
 package net.hagander.mailinglistmoderator.glue;
 
-import java.util.Vector;
-
 import net.hagander.mailinglistmoderator.R;
 import net.hagander.mailinglistmoderator.backend.ListServer;
+import net.hagander.mailinglistmoderator.backend.ServerIndex;
 import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 /**
  * @author Magnus Hagander <magnus@hagander.net>
  * 
+ *         Shows the lists and their status. Like MailMessageAdapter, it works
+ *         on a copy of the lists, here the ordered snapshot published by the
+ *         ServerIndex when refresh() is called. The status texts are built at
+ *         that time as well rather than every time a row is shown.
  */
-public class ListServerAdapter extends ArrayAdapter<ListServer> {
-	private Vector<ListServer> items;
+public class ListServerAdapter extends BaseAdapter {
+	private final LayoutInflater inflater;
+	private final int resource;
+	private final ServerIndex index;
+	private ListServer[] items = new ListServer[0];
+	private String[] statuses = new String[0];
+
+	/**
+	 * The child views of a row, kept in the tag of the row.
+	 */
+	private static class ViewHolder {
+		TextView name;
+		TextView status;
+	}
 
 	public ListServerAdapter(Context context, int textViewResourceId,
-			Vector<ListServer> servers) {
-		super(context, textViewResourceId, servers);
+			ServerIndex index) {
+		inflater = (LayoutInflater) context
+				.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+		resource = textViewResourceId;
+		this.index = index;
+		refresh();
+	}
 
-		items = servers;
+	/**
+	 * Pick up the current order of the lists, and their status. Must be called
+	 * on the UI thread.
+	 */
+	public void refresh() {
+		ListServer[] newItems = index.snapshot();
+		String[] newStatuses = new String[newItems.length];
+		for (int i = 0; i < newItems.length; i++)
+			newStatuses[i] = newItems[i].getStatus();
+		items = newItems;
+		statuses = newStatuses;
+		notifyDataSetChanged();
+	}
+
+	public int getCount() {
+		return items.length;
+	}
+
+	public ListServer getItem(int position) {
+		return items[position];
+	}
+
+	public long getItemId(int position) {
+		return position;
 	}
 
 	/**
@@ -39,20 +82,20 @@ public class ListServerAdapter extends ArrayAdapter<ListServer> {
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
 		View v = convertView;
+		ViewHolder holder;
 
 		if (v == null) {
-			LayoutInflater vi = (LayoutInflater) getContext().getSystemService(
-					Context.LAYOUT_INFLATER_SERVICE);
-			v = vi.inflate(R.layout.main_item, null);
-		}
-		ListServer o = items.get(position);
-		if (o != null) {
-			TextView n = (TextView) v.findViewById(R.id.TextView_ServerName);
-			TextView s = (TextView) v.findViewById(R.id.TextView_ServerStatus);
-
-			n.setText(o.getName());
-			s.setText(o.getStatus());
-		}
+			v = inflater.inflate(resource, null);
+			holder = new ViewHolder();
+			holder.name = (TextView) v.findViewById(R.id.TextView_ServerName);
+			holder.status = (TextView) v
+					.findViewById(R.id.TextView_ServerStatus);
+			v.setTag(holder);
+		} else
+			holder = (ViewHolder) v.getTag();
+
+		holder.name.setText(items[position].getName());
+		holder.status.setText(statuses[position]);
 		return v;
 	}
 }
@@ -1,5 +1,5 @@
 /*
- * MailMessageAdapter.java - This class holds an ArrayAdapter for the QueueListActivity activity.
+ * MailMessageAdapter.java - This class holds a ListAdapter for the QueueListActivity activity.
  * 
  * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
  * 
@@ -18,7 +18,7 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
@@ -26,17 +26,44 @@ import android.widget.TextView;
  * 
  * @author Magnus Hagander <magnus@hagander.net>
  * 
+ *         Shows the moderation queue of a list. The adapter works on its own
+ *         copy of the queue, taken when it's created and whenever refresh() is
+ *         called, so the list never sees the queue change under it while a
+ *         refresh is running in the background.
+ * 
+ *         The views of the rows are recycled, and each of them keeps its child
+ *         views in a ViewHolder, so binding a row doesn't look anything up or
+ *         allocate anything. This keeps scrolling smooth even with tens of
+ *         thousands of messages in the queue.
  */
-public class MailMessageAdapter extends ArrayAdapter<MailMessage> {
-	private Vector<MailMessage> items;
+public class MailMessageAdapter extends BaseAdapter {
+	private static final MailMessage[] EMPTY = new MailMessage[0];
+
+	private final LayoutInflater inflater;
+	private final int resource;
+	private MailMessage[] items = EMPTY;
 
 	private Bitmap img_green = null, img_red = null;
 
+	/**
+	 * The child views of a row, kept in the tag of the row.
+	 */
+	private static class ViewHolder {
+		TextView sender;
+		TextView subject;
+		ImageView image;
+
+		/* What the row is currently showing */
+		MailMessage message;
+		MailMessage.statuslevel status;
+	}
+
 	public MailMessageAdapter(Context context, int textViewResourceId,
 			Vector<MailMessage> objects) {
-		super(context, textViewResourceId, objects);
-
-		items = objects;
+		inflater = (LayoutInflater) context
+				.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+		resource = textViewResourceId;
+		items = objects.toArray(EMPTY);
 
 		try {
 			img_green = BitmapFactory.decodeResource(context.getResources(),
@@ -49,6 +76,27 @@ public class MailMessageAdapter extends ArrayAdapter<MailMessage> {
 		}
 	}
 
+	/**
+	 * Replace the rows with a new copy of the queue. Must be called on the UI
+	 * thread.
+	 */
+	public void refresh(Vector<MailMessage> objects) {
+		items = objects.toArray(EMPTY);
+		notifyDataSetChanged();
+	}
+
+	public int getCount() {
+		return items.length;
+	}
+
+	public MailMessage getItem(int position) {
+		return items[position];
+	}
+
+	public long getItemId(int position) {
+		return position;
+	}
+
 	/**
 	 * Create a view that contains the information we want to show about each
 	 * message, including an image representing the status.
@@ -56,35 +104,37 @@ public class MailMessageAdapter extends ArrayAdapter<MailMessage> {
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
 		View v = convertView;
+		ViewHolder holder;
 		if (v == null) {
-			LayoutInflater vi = (LayoutInflater) getContext().getSystemService(
-					Context.LAYOUT_INFLATER_SERVICE);
-			v = vi.inflate(R.layout.mail_item, null);
-		}
-		MailMessage o = items.get(position);
-		if (o != null) {
-			TextView sender = (TextView) v.findViewById(R.id.TextView_Sender);
-			TextView subj = (TextView) v.findViewById(R.id.TextView_Subject);
-			ImageView i = (ImageView) v.findViewById(R.id.ImageViewAction);
+			v = inflater.inflate(resource, null);
+			holder = new ViewHolder();
+			holder.sender = (TextView) v.findViewById(R.id.TextView_Sender);
+			holder.subject = (TextView) v.findViewById(R.id.TextView_Subject);
+			holder.image = (ImageView) v.findViewById(R.id.ImageViewAction);
+			v.setTag(holder);
+		} else
+			holder = (ViewHolder) v.getTag();
 
-			sender.setText(o.getSender());
-			subj.setText(o.getSubject());
-			try {
-				switch (o.getStatus()) {
-				case Accept:
-					i.setImageBitmap(img_green);
-					break;
-				case Reject:
-					i.setImageBitmap(img_red);
-					break;
-				case Defer:
-					i.setImageBitmap(null);
-					break;
-				}
-			} catch (Exception e) {
-				Log.w("getView", String.format("Meh, got exception: %s", e
-						.getMessage()));
+		MailMessage o = items[position];
+		if (holder.message != o) {
+			holder.sender.setText(o.getSender());
+			holder.subject.setText(o.getSubject());
+			holder.message = o;
+			holder.status = null;
+		}
+		if (holder.status != o.getStatus()) {
+			switch (o.getStatus()) {
+			case Accept:
+				holder.image.setImageBitmap(img_green);
+				break;
+			case Reject:
+				holder.image.setImageBitmap(img_red);
+				break;
+			case Defer:
+				holder.image.setImageBitmap(null);
+				break;
 			}
+			holder.status = o.getStatus();
 		}
 		return v;
 	}
@@ -0,0 +1,166 @@
+/*
+ * UiUpdateDispatcher.java - This class holds a dispatcher that batches updates of the UI.
+ *
+ * Copyright (C) 2010 Magnus Hagander <magnus@hagander.net>
+ *
+ * This software is released under the BSD license.
+ */
+package net.hagander.mailinglistmoderator.glue;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ *
+ * @author Magnus Hagander <magnus@hagander.net>
+ *
+ *         Runs updates of the UI on the UI thread, at most once per frame,
+ *         instead of posting every single update to the UI thread as it
+ *         happens. Each kind of update has its own slot, and only the last
+ *         update posted to a slot before the next frame is run, so with
+ *         hundreds of lists finishing or hundreds of messages moderated, the
+ *         UI is still only refreshed once per frame.
+ *
+ *         The pending slots are run in order, so an update that others depend
+ *         on (such as the maximum of a progress bar) should have a lower slot
+ *         number.
+ *
+ *         Updates posted after stop() are dropped. Totals for all dispatchers
+ *         are kept, to show in the metrics.
+ */
+public class UiUpdateDispatcher {
+	/* Time between refreshes, about one frame at 60 frames per second */
+	public static final long FRAME_MILLIS = 16;
+
+	private static long postedCount = 0;
+	private static long mergedCount = 0;
+	private static long droppedCount = 0;
+	private static long flushCount = 0;
+
+	private final Handler handler;
+	private final Runnable[] pending;
+	/* Only used on the UI thread, while running the updates */
+	private final Runnable[] running;
+
+	private boolean scheduled = false;
+	private boolean stopped = false;
+	private long lastFlush = 0;
+
+	private final Runnable flush = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Create a dispatcher with a number of slots. Must be created on the UI
+	 * thread.
+	 */
+	public UiUpdateDispatcher(int slots) {
+		handler = new Handler();
+		pending = new Runnable[slots];
+		running = new Runnable[slots];
+	}
+
+	/**
+	 * Run an update on the UI thread at the next frame, replacing any update
+	 * already waiting in the same slot. Safe to call from any thread.
+	 */
+	public void post(int slot, Runnable update) {
+		boolean merged = false;
+		boolean dropped = false;
+		synchronized (this) {
+			if (stopped)
+				dropped = true;
+			else {
+				merged = (pending[slot] != null);
+				pending[slot] = update;
+				if (!scheduled) {
+					scheduled = true;
+					long delay = lastFlush + FRAME_MILLIS
+							- SystemClock.uptimeMillis();
+					handler.postDelayed(flush, Math.max(0, delay));
+				}
+			}
+		}
+		synchronized (UiUpdateDispatcher.class) {
+			postedCount++;
+			if (merged)
+				mergedCount++;
+			if (dropped)
+				droppedCount++;
+		}
+	}
+
+	/**
+	 * Stop running updates, dropping any that are waiting. Call when the
+	 * activity goes away.
+	 */
+	public void stop() {
+		int dropped = 0;
+		synchronized (this) {
+			stopped = true;
+			for (int i = 0; i < pending.length; i++) {
+				if (pending[i] != null)
+					dropped++;
+				pending[i] = null;
+			}
+			handler.removeCallbacks(flush);
+		}
+		synchronized (UiUpdateDispatcher.class) {
+			droppedCount += dropped;
+		}
+	}
+
+	/**
+	 * Run all waiting updates, on the UI thread.
+	 */
+	private void flush() {
+		synchronized (this) {
+			scheduled = false;
+			lastFlush = SystemClock.uptimeMillis();
+			for (int i = 0; i < pending.length; i++) {
+				running[i] = pending[i];
+				pending[i] = null;
+			}
+		}
+		synchronized (UiUpdateDispatcher.class) {
+			flushCount++;
+		}
+		for (int i = 0; i < running.length; i++) {
+			Runnable r = running[i];
+			if (r != null) {
+				running[i] = null;
+				r.run();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of updates posted to any dispatcher.
+	 */
+	public static synchronized long getPostedCount() {
+		return postedCount;
+	}
+
+	/**
+	 * Get the number of updates replaced by a later one in the same slot.
+	 */
+	public static synchronized long getMergedCount() {
+		return mergedCount;
+	}
+
+	/**
+	 * Get the number of updates dropped because the dispatcher was stopped.
+	 */
+	public static synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Get the number of times the UI has been refreshed.
+	 */
+	public static synchronized long getFlushCount() {
+		return flushCount;
+	}
+}